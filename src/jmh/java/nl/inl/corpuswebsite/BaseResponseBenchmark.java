@@ -0,0 +1,147 @@
+package nl.inl.corpuswebsite;
+
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.velocity.app.Velocity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig;
+import nl.inl.corpuswebsite.utils.WebsiteConfig;
+import nl.inl.corpuswebsite.utils.XslTransformer;
+
+/**
+ * Rendering the article page (article.vm, including header and footer) with the html-escaping event handler from {@link BaseResponse},
+ * for a transformed document and its metadata. The output is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BaseResponseBenchmark {
+    private MainServlet servlet;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private String content;
+    private String metadata;
+
+    /** Fills the model like ArticleResponse does, without contacting BlackLab. */
+    private class ArticlePage extends BaseResponse {
+        ArticlePage() {
+            super("article", true);
+        }
+
+        @Override
+        protected void completeRequest() {
+            model.put("article_content_restricted", false);
+            model.put("article_content", content);
+            model.put("article_content_error", null);
+            model.put("article_meta", metadata);
+            model.put("article_meta_error", null);
+            model.put("docId", "brieven-0042");
+            model.put("docLength", 2173);
+            model.put("pageSize", 1000);
+            model.put("pageStart", 0);
+            model.put("pageEnd", 1000);
+            displayHtmlTemplate(servlet.getTemplate("article"));
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        // Same settings as WEB-INF/config/velocity.properties, but loading from the source tree instead of the war.
+        Properties p = new Properties();
+        p.setProperty("input.encoding", "UTF-8");
+        p.setProperty("output.encoding", "UTF-8");
+        p.setProperty("runtime.log.logsystem.class", "org.apache.velocity.runtime.log.NullLogSystem");
+        p.setProperty("resource.loader", "file");
+        p.setProperty("file.resource.loader.path", new File("src/main/webapp/WEB-INF/templates").getAbsolutePath());
+        p.setProperty("runtime.references.strict", "true");
+        Velocity.init(p);
+
+        GlobalConfig config = GlobalConfig.getDefault();
+        WebsiteConfig websiteConfig = new WebsiteConfig(new File(getClass().getResource("/interface-default/search.xml").toURI()), "/corpus-frontend", Optional.of("brieven"));
+        servlet = new MainServlet() {
+            @Override
+            public GlobalConfig getGlobalConfig() {
+                return config;
+            }
+
+            @Override
+            public WebsiteConfig getWebsiteConfig(Optional<String> corpus) {
+                return websiteConfig;
+            }
+        };
+
+        Map<String, String> params = Map.of("contextPath", "/corpus-frontend", "corpusId", "brieven");
+        content = transform("/interface-default/article_tei.xsl", Fixtures.read(Fixtures.DOCUMENT_CONTENTS), params);
+        metadata = transform("/interface-default/meta.xsl", Fixtures.read(Fixtures.DOCUMENT_METADATA), params);
+
+        request = stub(HttpServletRequest.class, null);
+        response = stub(HttpServletResponse.class, new ServletOutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {}
+        });
+    }
+
+    private static String transform(String stylesheet, String xml, Map<String, String> params) throws Exception {
+        try (Reader xsl = new InputStreamReader(BaseResponseBenchmark.class.getResourceAsStream(stylesheet), StandardCharsets.UTF_8)) {
+            return new XslTransformer("benchmark" + stylesheet, xsl).withParameters(params).transform(xml);
+        }
+    }
+
+    /** A request/response that does nothing, returning the output stream (if any) from getOutputStream. */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, ServletOutputStream out) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if (method.getName().equals("getOutputStream")) return out;
+            Class<?> r = method.getReturnType();
+            if (r == boolean.class) return false;
+            if (r == int.class) return 0;
+            if (r == long.class) return 0L;
+            return null;
+        });
+    }
+
+    @Benchmark
+    public void renderArticlePage() throws Exception {
+        ArticlePage page = new ArticlePage();
+        page.init(request, response, servlet, Optional.of("brieven"), List.of("brieven-0042"));
+        page.completeRequest();
+    }
+}
@@ -0,0 +1,44 @@
+package nl.inl.corpuswebsite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Responses recorded from BlackLab, used as input for the benchmarks.
+ * See src/jmh/resources/fixtures.
+ */
+public class Fixtures {
+    /** /{corpus}?outputformat=xml */
+    public static final String CORPUS_INFO_XML = "corpus-info.xml";
+    /** /{corpus}?outputformat=json&amp;listvalues=lemma,pos,... */
+    public static final String CORPUS_INFO_JSON = "corpus-info.json";
+    /** /{corpus}/docs/{pid}?outputformat=xml, for a document in a parallel corpus */
+    public static final String DOCUMENT_METADATA = "document-metadata.xml";
+    /** /{corpus}/docs/{pid}/contents?patt=..., a TEI document of a few thousand words with some hits */
+    public static final String DOCUMENT_CONTENTS = "document-contents.xml";
+
+    public static String read(String name) {
+        try (InputStream is = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if (is == null) throw new IllegalArgumentException("No fixture " + name);
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** The document contents, with the body repeated until the document is at least minLength characters. */
+    public static String largeDocument(int minLength) {
+        String doc = read(DOCUMENT_CONTENTS);
+        int bodyStart = doc.indexOf("<body>") + "<body>".length();
+        int bodyEnd = doc.indexOf("</body>");
+        String body = doc.substring(bodyStart, bodyEnd);
+
+        StringBuilder b = new StringBuilder(minLength + doc.length());
+        b.append(doc, 0, bodyStart);
+        while (b.length() < minLength) b.append(body);
+        b.append(doc, bodyEnd, doc.length());
+        return b.toString();
+    }
+}
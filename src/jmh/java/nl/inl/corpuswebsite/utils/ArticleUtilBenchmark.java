@@ -0,0 +1,52 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.inl.corpuswebsite.Fixtures;
+
+/**
+ * Deciding whether document contents are xml (and should be transformed), or plain text.
+ * Plain text is the worst case, as the whole prefix that is inspected has to be read.
+ * Also rendering plain text documents as html.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArticleUtilBenchmark {
+    @Param({"xml", "text"})
+    public String document;
+
+    private String contents;
+
+    @Setup
+    public void setup() {
+        String xml = Fixtures.largeDocument(1024 * 1024);
+        // A plain text document of the same size, only containing the hl tags BlackLab inserts.
+        contents = document.equals("xml") ? xml : xml.replaceAll("<(?!/?hl>)[^>]*>", "");
+    }
+
+    @Benchmark
+    public boolean looksLikeXml() {
+        return ArticleUtil.looksLikeXml(contents);
+    }
+
+    @Benchmark
+    public String plainText() {
+        return ArticleUtil.plainText(contents);
+    }
+}
@@ -0,0 +1,84 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.inl.corpuswebsite.Fixtures;
+
+/** Reading responses from BlackLab into a string. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthRequestBenchmark {
+    @Param({Fixtures.DOCUMENT_METADATA, Fixtures.CORPUS_INFO_JSON})
+    public String fixture;
+
+    private URL url;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        url = new URL("http://localhost:8080/blacklab-server/");
+        body = Fixtures.read(fixture).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Result<String, QueryException> decode() {
+        return AuthRequest.decode(new UpstreamClient.Connection(new RecordedConnection(url, body), () -> {}));
+    }
+
+    /** A successful response with the recorded body. */
+    private static class RecordedConnection extends HttpURLConnection {
+        private final byte[] body;
+
+        RecordedConnection(URL url, byte[] body) {
+            super(url);
+            this.body = body;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return HTTP_OK;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return null;
+        }
+
+        @Override
+        public void connect() {}
+
+        @Override
+        public void disconnect() {}
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.inl.corpuswebsite.Fixtures;
+
+/** Parsing the corpus info returned by BlackLab. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorpusConfigBenchmark {
+    private String xml;
+    private String json;
+
+    @Setup
+    public void setup() {
+        xml = Fixtures.read(Fixtures.CORPUS_INFO_XML);
+        json = Fixtures.read(Fixtures.CORPUS_INFO_JSON);
+    }
+
+    @Benchmark
+    public CorpusConfig construct() throws Exception {
+        return new CorpusConfig("brieven", xml, json);
+    }
+}
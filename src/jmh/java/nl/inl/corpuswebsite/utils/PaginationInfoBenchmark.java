@@ -0,0 +1,43 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.inl.corpuswebsite.Fixtures;
+
+/** Extracting the document length from the document metadata, for the main field and for a parallel field. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaginationInfoBenchmark {
+    /** Empty for the main annotated field. */
+    @Param({"", "nl"})
+    public String field;
+
+    private Result<String, QueryException> metadata;
+
+    @Setup
+    public void setup() {
+        metadata = Result.success(Fixtures.read(Fixtures.DOCUMENT_METADATA));
+    }
+
+    @Benchmark
+    public PaginationInfo paginationInfo() {
+        return new PaginationInfo(Optional.of(1000), metadata, Optional.of(500), Optional.empty(), Optional.empty(), Optional.of(field));
+    }
+}
@@ -0,0 +1,83 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.inl.corpuswebsite.Fixtures;
+
+/**
+ * Runs the builtin TEI article stylesheet on a recorded document.
+ * The single-threaded and the multi-threaded streaming benchmarks do the same work, so comparing their scores
+ * shows how well a single shared {@link XslTransformer} scales with the number of request threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XslTransformerBenchmark {
+    /** small is a single page of a document (~100kB), large is a whole document of several megabytes. */
+    @Param({"small", "large"})
+    public String document;
+
+    private XslTransformer transformer;
+
+    private String contents;
+
+    @Setup
+    public void setup() throws Exception {
+        try (Reader xsl = new InputStreamReader(getClass().getResourceAsStream("/interface-default/article_tei.xsl"), StandardCharsets.UTF_8)) {
+            transformer = new XslTransformer("benchmark_article_tei", xsl)
+                    .withParameters(Map.of("contextPath", "/corpus-frontend", "corpusId", "benchmark"));
+        }
+        contents = document.equals("small") ? Fixtures.read(Fixtures.DOCUMENT_CONTENTS) : Fixtures.largeDocument(4 * 1024 * 1024);
+    }
+
+    @Benchmark
+    public String transform() throws Exception {
+        return transformer.transform(contents);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Writer streamTransformSingleThread() throws Exception {
+        return transformer.streamTransform(new StringReader(contents), new NullWriter());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Writer streamTransformAllThreads() throws Exception {
+        return transformer.streamTransform(new StringReader(contents), new NullWriter());
+    }
+
+    /** Discards the output, so we measure the transformation and not the buffering of the result. */
+    static class NullWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {}
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+}
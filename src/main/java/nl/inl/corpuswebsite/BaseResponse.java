@@ -6,9 +6,17 @@
  */
 package nl.inl.corpuswebsite;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Year;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 import java.util.Optional;
 import java.util.logging.Logger;
@@ -22,9 +30,12 @@ import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.event.EventCartridge;
 import org.apache.velocity.app.event.ReferenceInsertionEventHandler;
+import org.apache.velocity.runtime.Renderable;
 import org.apache.velocity.tools.generic.DateTool;
 import org.apache.velocity.tools.generic.EscapeTool;
 
+import nl.inl.corpuswebsite.utils.BoundedCache;
+import nl.inl.corpuswebsite.utils.CompressingOutputStream;
 import nl.inl.corpuswebsite.utils.GlobalConfig;
 import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 import nl.inl.corpuswebsite.utils.QueryException;
@@ -53,6 +64,9 @@ public abstract class BaseResponse {
     /** Does this response require a corpus to be set? */
     private final boolean requiresCorpus;
 
+    /** The rest of the page goes here when the header was sent ahead of it, see {@link #flushHtmlHeader()}. */
+    private Writer pageWriter;
+
     /**
      * The corpus this response is being generated for.
      * When on contextRoot/zeebrieven/*, this response is in the context of the zeebrieven corpus.
@@ -163,6 +177,8 @@ public abstract class BaseResponse {
                 @Override
                 public Object referenceInsert(String expression, Object value) {
                     boolean escape = !expression.toLowerCase().contains("unescaped");
+                    // Renderables write themselves to the output (e.g. streamed document contents), don't turn them into a string.
+                    if (!escape && value instanceof Renderable) return value;
                     String val = value != null ? value.toString() : "";
 
                     return escape ? esc.html(val) : val;
@@ -180,12 +196,22 @@ public abstract class BaseResponse {
      * @param mimeType mime type to set
      */
     protected void displayTemplate(Template template, String mimeType) {
+        if (pageWriter != null) {
+            // The header was already sent, see flushHtmlHeader(), finish the page.
+            try (Writer w = pageWriter) {
+                template.merge(model, w);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
         // Set the content headers for the response
         response.setCharacterEncoding(OUTPUT_ENCODING);
         response.setContentType(mimeType);
 
         // Merge context into the page template and write to output stream
-        try (OutputStreamWriter osw = new OutputStreamWriter(response.getOutputStream(), OUTPUT_ENCODING)) {
+        try (OutputStreamWriter osw = new OutputStreamWriter(openOutputStream(), OUTPUT_ENCODING)) {
             template.merge(model, osw);
             osw.flush();
         } catch (Exception e) {
@@ -193,6 +219,36 @@ public abstract class BaseResponse {
         }
     }
 
+    /**
+     * <pre>
+     * Render header.vm and send it to the client right away, so the browser can start loading stylesheets and scripts
+     * while the rest of the page waits on BlackLab. Finish the page with {@link #displayHtmlTemplate(Template)} as usual,
+     * the page template should not parse header.vm again when $headerSent is set.
+     * Everything the header uses must be in the model, and the status and headers can't be changed afterwards.
+     * </pre>
+     */
+    protected void flushHtmlHeader() {
+        response.setCharacterEncoding(OUTPUT_ENCODING);
+        response.setContentType("text/html");
+        try {
+            pageWriter = new OutputStreamWriter(openOutputStream(), OUTPUT_ENCODING);
+            servlet.getTemplate("header").merge(model, pageWriter);
+            pageWriter.flush();
+            response.flushBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        model.put("headerSent", true);
+    }
+
+    /**
+     * Open the response body for writing, gzipped if the client accepts it, see {@link CompressingOutputStream}.
+     * The stream must be closed to finish the response.
+     */
+    protected OutputStream openOutputStream() throws IOException {
+        return CompressingOutputStream.open(request, response, servlet.getGlobalConfig());
+    }
+
     /**
      * Display a template with the HTML mime type
      *
@@ -202,6 +258,50 @@ public abstract class BaseResponse {
         displayTemplate(template, "text/html");
     }
 
+    /**
+     * <pre>
+     * Like {@link #displayHtmlTemplate(Template)}, but the rendered page is cached, and served from the cache on the next request.
+     * Only for pages that depend on nothing but the corpus, the config, and whether the banner was dismissed (i.e. the model set up in {@link #init}).
+     * The page is rendered again when the config file is reloaded, or when sourceVersion changes.
+     * </pre>
+     *
+     * @param templateName the template, see {@link MainServlet#getTemplate(String)}
+     * @param sourceVersion identifies the version of any other input of the page (e.g. the modification time of a file that's included), empty if there are none.
+     * @param prepareModel adds anything else the template needs to the model, only called when the page is not cached.
+     */
+    protected void displayCachedHtmlTemplate(String templateName, String sourceVersion, Runnable prepareModel) {
+        BoundedCache<String, byte[]> cache = servlet.getRenderedPageCache();
+        String key = String.join("\0",
+                getClass().getName(),
+                corpus.orElse(""),
+                Boolean.toString(model.containsKey("bannerMessage")),
+                Long.toString(servlet.getGlobalConfig().getGeneration()),
+                Integer.toString(Year.now().getValue()), // in the footer
+                sourceVersion);
+
+        byte[] page = cache.isEnabled() ? cache.get(key).orElse(null) : null;
+        if (page == null) {
+            prepareModel.run();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (OutputStreamWriter osw = new OutputStreamWriter(out, OUTPUT_ENCODING)) {
+                servlet.getTemplate(templateName).merge(model, osw);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            page = out.toByteArray();
+            if (cache.isEnabled()) cache.put(key, page);
+        }
+
+        response.setCharacterEncoding(OUTPUT_ENCODING);
+        response.setContentType("text/html");
+        response.setContentLength(page.length);
+        try (OutputStream out = openOutputStream()) {
+            out.write(page);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * @throws IOException On general IO problems (i.e. not our code).
      * @throws ReturnToClientException When flow was aborted somewhere deep in the code, and we just want to abort completely. But we do want to pass a message and status code.
@@ -209,10 +309,53 @@ public abstract class BaseResponse {
      */
     protected abstract void completeRequest() throws IOException, ReturnToClientException, QueryException;
 
+    /**
+     * A strong ETag for the content, including the quotes.
+     * @param content the response body
+     * @return the etag
+     */
+    protected static String etag(String content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content.getBytes(StandardCharsets.UTF_8));
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every java implementation is required to support SHA-1
+        }
+    }
+
+    /**
+     * Set the ETag header, and check whether the client already has this version of the response (using the If-None-Match header).
+     * If so, a 304 Not Modified is sent, and the body should not be written.
+     *
+     * @param etag the etag for the response, see {@link #etag(String)}
+     * @return true if the client's version is up to date and a 304 was sent.
+     */
+    protected boolean isNotModified(String etag) {
+        response.setHeader("ETag", etag);
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null) return false;
+
+        // If-None-Match uses the weak comparison, so ignore the W/ prefix.
+        boolean matches = Arrays.stream(ifNoneMatch.split(","))
+                .map(String::trim)
+                .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+                .anyMatch(tag -> tag.equals("*") || tag.equals(etag));
+        if (matches) response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return matches;
+    }
+
     public boolean isCorpusRequired() {
         return requiresCorpus;
     }
 
+    /**
+     * Whether this response mostly waits on BlackLab, and should be handled asynchronously, off the container's request threads.
+     * The whole lifecycle ({@link #init} and {@link #completeRequest()}) then runs on a separate thread.
+     */
+    public boolean isAsync() {
+        return false;
+    }
+
     public Optional<Cookie> getCookie(String name) {
         return Optional.ofNullable(request.getCookies()).flatMap(cc -> Arrays.stream(cc).filter(t -> t.getName().equals(name)).findFirst());
     }
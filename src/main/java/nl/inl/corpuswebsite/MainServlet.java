@@ -14,6 +14,8 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -21,11 +23,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -48,17 +60,29 @@ import nl.inl.corpuswebsite.response.CorporaDataResponse;
 import nl.inl.corpuswebsite.response.CorporaResponse;
 import nl.inl.corpuswebsite.response.ErrorResponse;
 import nl.inl.corpuswebsite.response.HelpResponse;
+import nl.inl.corpuswebsite.response.MetricsResponse;
 import nl.inl.corpuswebsite.response.OidcCallbackResponse;
+import nl.inl.corpuswebsite.response.ReadyResponse;
 import nl.inl.corpuswebsite.response.RemoteIndexResponse;
 import nl.inl.corpuswebsite.response.SearchResponse;
+import nl.inl.corpuswebsite.utils.AuthRequest;
 import nl.inl.corpuswebsite.utils.BlackLabApi;
+import nl.inl.corpuswebsite.utils.BoundedCache;
 import nl.inl.corpuswebsite.utils.CorpusConfig;
 import nl.inl.corpuswebsite.utils.CorpusFileUtil;
+import nl.inl.corpuswebsite.utils.DiskCache;
+import nl.inl.corpuswebsite.utils.DocumentLengthIndex;
 import nl.inl.corpuswebsite.utils.GlobalConfig;
 import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+import nl.inl.corpuswebsite.utils.LoadingCache;
+import nl.inl.corpuswebsite.utils.Metrics;
+import nl.inl.corpuswebsite.utils.PrincipalCache;
 import nl.inl.corpuswebsite.utils.QueryException;
 import nl.inl.corpuswebsite.utils.Result;
 import nl.inl.corpuswebsite.utils.ReturnToClientException;
+import nl.inl.corpuswebsite.utils.UpstreamClient;
+import nl.inl.corpuswebsite.utils.UpstreamExecutor;
+import nl.inl.corpuswebsite.utils.UpstreamGuard;
 import nl.inl.corpuswebsite.utils.WebsiteConfig;
 import nl.inl.corpuswebsite.utils.XslTransformer;
 
@@ -90,7 +114,7 @@ public class MainServlet extends HttpServlet {
     /**
      * Xslt transformers for corpora
      */
-    private static final Map<String, Result<XslTransformer, TransformerException>> articleTransformers = new HashMap<>();
+    private static final Map<String, Result<XslTransformer, TransformerException>> articleTransformers = new ConcurrentHashMap<>();
 
     /**
      * The response classes for our URI patterns
@@ -99,6 +123,37 @@ public class MainServlet extends HttpServlet {
 
     private GlobalConfig config;
 
+    /** Created during init, as the size depends on the config. */
+    private BoundedCache<String, String> renderedArticles;
+
+    /** Pages of documents transformed ahead of time, see {@link nl.inl.corpuswebsite.utils.ArticleUtil#prefetchAdjacentPages}. Created during init. */
+    private BoundedCache<String, String> prefetchedPages;
+
+    /** Created during init, as the size and location depend on the config. */
+    private DocumentLengthIndex documentLengths;
+
+    /** Corpus configs and stylesheets from BlackLab, kept across restarts. Created during init, as the location depends on the config. */
+    private DiskCache diskCache = DiskCache.DISABLED;
+
+    /** Namespace of the corpus configs in the {@link #diskCache}. */
+    private static final String CORPUS_CONFIGS = "corpus-configs";
+
+    /** Rendered pages, see {@link BaseResponse#displayCachedHtmlTemplate(String, String, Runnable)}. Created during init. */
+    private BoundedCache<String, byte[]> renderedPages;
+
+    /** Null if async processing is disabled, see {@link #createRequestExecutor(int)}. */
+    private ExecutorService requestExecutor;
+
+    /** Set once startup warmup is done, see {@link #warmup()}. */
+    private volatile boolean ready = false;
+
+    /** Templates for pages, loaded during warmup. */
+    private static final String[] WARMUP_TEMPLATES = { "header", "footer", "corpora", "search", "article", "contentpage", "error" };
+
+    /** Corpus configs and stylesheets retrieved with user credentials, see {@link #getCachePrincipal(HttpServletRequest)}. Created during init. */
+    private PrincipalCache<CorpusConfig> principalConfigs;
+    private PrincipalCache<XslTransformer> principalTransformers;
+
     @Override
     public void init(ServletConfig cfg) throws ServletException {
         try {
@@ -106,10 +161,32 @@ public class MainServlet extends HttpServlet {
 
             ServletContext ctx = cfg.getServletContext();
             this.config = GlobalConfig.getInstance();
+            files = new BoundedCache<>(useCache(null) ? config.getInt(Keys.CACHE_FILES_MAX) : 0, config.getInt(Keys.CACHE_FILES_TTL) * 1000L, __ -> 1);
             startVelocity(ctx);
 
             XslTransformer.setUseCache(this.useCache(null));
             BlackLabApi.setBlsUrl(config.get(Keys.BLS_URL_ON_SERVER));
+            UpstreamClient.configure(config);
+            UpstreamExecutor.configure(config);
+            UpstreamGuard.configure(config);
+            if (config.getBool(Keys.REQUEST_ASYNC)) requestExecutor = createRequestExecutor(config.getInt(Keys.REQUEST_THREADS));
+            renderedArticles = new BoundedCache<>(
+                    useCache(null) ? config.getInt(Keys.CACHE_ARTICLES_SIZE) * 1024L * 1024L : 0,
+                    config.getInt(Keys.CACHE_ARTICLES_TTL) * 1000L,
+                    BoundedCache::weigh);
+            prefetchedPages = new BoundedCache<>(
+                    useCache(null) ? config.getInt(Keys.CACHE_PREFETCH_SIZE) * 1024L * 1024L : 0,
+                    config.getInt(Keys.CACHE_PREFETCH_TTL) * 1000L,
+                    BoundedCache::weigh);
+            documentLengths = new DocumentLengthIndex(useCache(null) ? config.getInt(Keys.CACHE_DOCUMENT_LENGTHS) : 0, getCacheDir());
+            diskCache = new DiskCache(useCache(null) ? getCacheDir() : Optional.empty());
+            loadCorpusConfigsFromDisk();
+            renderedPages = new BoundedCache<>(
+                    useCache(null) ? config.getInt(Keys.CACHE_PAGES_SIZE) * 1024L * 1024L : 0,
+                    0,
+                    page -> page.length + 40L);
+            principalConfigs = createPrincipalCache();
+            principalTransformers = createPrincipalCache();
 
             // Map responses, the majority of these can be served for a specific corpus, or as a general autosearch page
             // E.G. the AboutResponse is mapped to /<root>/<corpus>/about and /<root>/about
@@ -124,6 +201,11 @@ public class MainServlet extends HttpServlet {
             responses.put("configwizard", ConfigWizardResponse.class);
             responses.put("api", ApiResponse.class);
             responses.put("callback", OidcCallbackResponse.class);
+            responses.put("metrics", MetricsResponse.class);
+            responses.put("ready", ReadyResponse.class);
+
+            registerMetrics();
+            warmup();
         } catch (ServletException e) {
             throw e;
         } catch (Exception e) {
@@ -131,6 +213,149 @@ public class MainServlet extends HttpServlet {
         }
     }
 
+    private <V> PrincipalCache<V> createPrincipalCache() {
+        return new PrincipalCache<>(
+                useCache(null) ? config.getInt(Keys.CACHE_PRINCIPAL_MAX) : 0,
+                config.getInt(Keys.CACHE_PRINCIPAL_ENTRIES),
+                config.getInt(Keys.CACHE_PRINCIPAL_TTL) * 1000L);
+    }
+
+    /** Register the cache and thread pool statistics, these are read when the metrics are requested. */
+    private void registerMetrics() {
+        Metrics m = Metrics.getInstance();
+        m.gauge("cache_entries", "Number of entries in the cache.", () -> configCache.getStats().size, "cache", "corpus-config");
+        m.gauge("cache_hit_ratio", "Fraction of lookups that were served from the cache.", () -> configCache.getStats().hitRatio(), "cache", "corpus-config");
+        m.counter("cache_hits_total", "Lookups that were served from the cache.", () -> configCache.getStats().hits, "cache", "corpus-config");
+        m.counter("cache_misses_total", "Lookups that were not in the cache.", () -> configCache.getStats().misses, "cache", "corpus-config");
+        m.counter("cache_refreshes_total", "Values that were reloaded in the background.", () -> configCache.getStats().refreshes, "cache", "corpus-config");
+        m.counter("cache_stale_hits_total", "Lookups that returned a value past its ttl, while it was being reloaded.", () -> configCache.getStats().staleHits, "cache", "corpus-config");
+
+        m.gauge("cache_entries", "Number of entries in the cache.", () -> renderedArticles.getStats().size, "cache", "articles");
+        m.gauge("cache_hit_ratio", "Fraction of lookups that were served from the cache.", () -> renderedArticles.getStats().hitRatio(), "cache", "articles");
+        m.counter("cache_hits_total", "Lookups that were served from the cache.", () -> renderedArticles.getStats().hits, "cache", "articles");
+        m.counter("cache_misses_total", "Lookups that were not in the cache.", () -> renderedArticles.getStats().misses, "cache", "articles");
+        m.counter("cache_evictions_total", "Entries removed from the cache to make room for new ones.", () -> renderedArticles.getStats().evictions, "cache", "articles");
+        m.gauge("cache_weight_bytes", "Approximate memory used by the cache.", () -> renderedArticles.getStats().weight, "cache", "articles");
+        m.gauge("cache_max_weight_bytes", "Max memory the cache may use.", () -> renderedArticles.getStats().maxWeight, "cache", "articles");
+
+        m.gauge("cache_entries", "Number of entries in the cache.", () -> prefetchedPages.getStats().size, "cache", "prefetch");
+        m.counter("cache_hits_total", "Lookups that were served from the cache.", () -> prefetchedPages.getStats().hits, "cache", "prefetch");
+        m.counter("cache_misses_total", "Lookups that were not in the cache.", () -> prefetchedPages.getStats().misses, "cache", "prefetch");
+        m.counter("cache_evictions_total", "Entries removed from the cache to make room for new ones.", () -> prefetchedPages.getStats().evictions, "cache", "prefetch");
+        m.gauge("cache_weight_bytes", "Approximate memory used by the cache.", () -> prefetchedPages.getStats().weight, "cache", "prefetch");
+
+        m.gauge("cache_entries", "Number of entries in the cache.", () -> documentLengths.getStats().size, "cache", "document-lengths");
+        m.counter("cache_hits_total", "Lookups that were served from the cache.", () -> documentLengths.getStats().hits, "cache", "document-lengths");
+        m.counter("cache_misses_total", "Lookups that were not in the cache.", () -> documentLengths.getStats().misses, "cache", "document-lengths");
+
+        m.gauge("cache_entries", "Number of entries in the cache.", () -> renderedPages.getStats().size, "cache", "pages");
+        m.gauge("cache_weight_bytes", "Approximate memory used by the cache.", () -> renderedPages.getStats().weight, "cache", "pages");
+        m.gauge("cache_max_weight_bytes", "Max memory the cache may use.", () -> renderedPages.getStats().maxWeight, "cache", "pages");
+        m.counter("cache_hits_total", "Lookups that were served from the cache.", () -> renderedPages.getStats().hits, "cache", "pages");
+        m.counter("cache_misses_total", "Lookups that were not in the cache.", () -> renderedPages.getStats().misses, "cache", "pages");
+        m.gauge("cache_entries", "Number of entries in the cache.", articleTransformers::size, "cache", "stylesheets");
+        registerMetrics(m, "corpus-config-principal", principalConfigs);
+        registerMetrics(m, "stylesheets-principal", principalTransformers);
+        m.gauge("cache_entries", "Number of entries in the cache.", () -> files.getStats().size, "cache", "files");
+        m.counter("cache_hits_total", "Lookups that were served from the cache.", () -> files.getStats().hits, "cache", "files");
+        m.counter("cache_misses_total", "Lookups that were not in the cache.", () -> files.getStats().misses, "cache", "files");
+        m.gauge("cache_entries", "Number of entries in the cache.", () -> configs.size(), "cache", "website-config");
+        m.gauge("cache_entries", "Number of entries in the cache.", () -> templates.size(), "cache", "templates");
+
+        m.gauge("warmup_ready", "Whether startup warmup is done (1) or still running (0).", () -> ready ? 1 : 0);
+        m.gauge("upstream_executor_active_threads", "Threads processing parts of requests in the background.", () -> UpstreamExecutor.getInstance().getActiveCount());
+        m.gauge("upstream_executor_queued_tasks", "Parts of requests waiting for a background thread.", () -> UpstreamExecutor.getInstance().getQueueSize());
+        m.counter("upstream_coalesced_total", "Upstream (BlackLab) requests that shared the result of an identical request in flight, instead of being sent.", AuthRequest::getCoalescedCount);
+        m.gauge("upstream_circuit_state", "State of the circuit breaker for upstream (BlackLab): 0 closed, 1 open, 2 half-open.", () -> UpstreamGuard.getInstance().getState().ordinal());
+        for (String operation : new String[] { BlackLabApi.CORPUS_INFO, BlackLabApi.DOCUMENT_METADATA, BlackLabApi.DOCUMENT_CONTENTS, BlackLabApi.STYLESHEET }) {
+            m.gauge("upstream_requests_in_flight", "Upstream (BlackLab) requests in flight, only for operations with a limit.", () -> UpstreamGuard.getInstance().getActive(operation), "endpoint", operation);
+        }
+    }
+
+    /**
+     * <pre>
+     * Load the configs, search.xml and stylesheets of the corpora in {@link Keys#WARMUP_CORPORA} (and our templates) into the caches,
+     * so the first visitors after a restart don't have to wait for them.
+     * Runs in the background, corpora are loaded in parallel on the {@link UpstreamExecutor}.
+     * {@link #isReady()} becomes true when done, whether or not everything could be loaded:
+     * a corpus that fails now would fail for visitors too, and shouldn't keep us from serving the others.
+     * </pre>
+     */
+    private void warmup() {
+        List<String> configured = Arrays.stream(StringUtils.split(StringUtils.defaultString(config.get(Keys.WARMUP_CORPORA)), ','))
+                .map(String::trim)
+                .filter(StringUtils::isNotEmpty)
+                .collect(Collectors.toList());
+        if (configured.isEmpty() || !useCache(null)) {
+            ready = true;
+            return;
+        }
+
+        Thread t = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                for (String template : WARMUP_TEMPLATES) getTemplate(template);
+
+                List<String> corpora = !configured.contains("*") ? configured : new BlackLabApi(null, config).getCorpora()
+                        .tapError(e -> logger.warning("Could not list corpora to warm up: " + e.getMessage()))
+                        .getResult(List.of());
+                List<UpstreamExecutor.Stage<String, Exception>> stages = new ArrayList<>();
+                for (String corpus : corpora) {
+                    stages.add(UpstreamExecutor.getInstance().submit("warming up " + corpus, () -> warmup(corpus),
+                            message -> new QueryException(HttpServletResponse.SC_GATEWAY_TIMEOUT, message)));
+                }
+                int warmed = 0;
+                for (UpstreamExecutor.Stage<String, Exception> stage : stages) {
+                    try {
+                        Result<String, Exception> r = stage.get();
+                        if (r.hasResult()) ++warmed;
+                        else r.getError().ifPresent(e -> logger.warning("Warmup failed: " + e.getMessage()));
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Warmup failed", e);
+                    }
+                }
+                logger.info("Warmed up " + warmed + " of " + corpora.size() + " corpora in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            } finally {
+                ready = true;
+            }
+        }, "warmup");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** @return the corpus, if everything needed to show its pages could be loaded. */
+    private Result<String, Exception> warmup(String corpus) {
+        Optional<String> c = Optional.of(corpus);
+        return getCorpusConfig(c, null, null).flatMap(corpusConfig -> {
+            getWebsiteConfig(c);
+            BlackLabApi api = new BlackLabApi(null, config);
+            return getStylesheet(corpusConfig, "article", api)
+                    .flatMap(__ -> getStylesheet(corpusConfig, "meta", api))
+                    .map(__ -> corpus)
+                    .mapError(e -> (Exception) new TransformerException("Could not load stylesheets for " + corpus + ": " + e.getMessage(), e));
+        });
+    }
+
+    /** Whether startup warmup is done, see {@link Keys#WARMUP_CORPORA}. Always true when warmup is disabled. */
+    public boolean isReady() {
+        return ready;
+    }
+
+    private static void registerMetrics(Metrics m, String name, PrincipalCache<?> cache) {
+        m.counter("cache_hits_total", "Lookups that were served from the cache.", cache::getHits, "cache", name);
+        m.counter("cache_misses_total", "Lookups that were not in the cache.", cache::getMisses, "cache", name);
+        m.gauge("cache_principals", "Number of users with entries in the cache.", cache::getPrincipalCount, "cache", name);
+    }
+
+    @Override
+    public void destroy() {
+        UpstreamExecutor.getInstance().shutdown();
+        cacheRefresher.shutdownNow();
+        if (requestExecutor != null) requestExecutor.shutdown();
+        if (documentLengths != null) documentLengths.close();
+        super.destroy();
+    }
+
     /**
      * Start the templating engine. Loading settings from {@link #VELOCITY_PROPERTIES}
      *
@@ -159,8 +384,10 @@ public class MainServlet extends HttpServlet {
 
         if (Velocity.resourceExists(templateName)) {
             if (templates.containsKey(templateName)) {
+                cacheLookup("templates", true);
                 return templates.get(templateName);
             }
+            cacheLookup("templates", false);
 
             try {
                 Template t = Velocity.getTemplate(templateName, "utf-8");
@@ -195,11 +422,71 @@ public class MainServlet extends HttpServlet {
             })
             .orElseThrow(() -> new IllegalStateException("No search.xml, and no default in jar either"));
 
-        return useCache(null) ? configs.computeIfAbsent(corpus.orElse(null), gen) : gen.apply(corpus.orElse(null));
+        if (!useCache(null)) return gen.apply(corpus.orElse(null));
+        cacheLookup("website-config", configs.containsKey(corpus.orElse(null)));
+        return configs.computeIfAbsent(corpus.orElse(null), gen);
+    }
+
+    private static void cacheLookup(String cache, boolean hit) {
+        Metrics.getInstance().counter(hit ? "cache_hits_total" : "cache_misses_total", hit ? "Lookups that were served from the cache." : "Lookups that were not in the cache.", "cache", cache).inc();
+    }
+
+    /** Refreshes cached values in the background, see {@link LoadingCache}. */
+    private final ScheduledExecutorService cacheRefresher = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "cache-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Corpus configs (as returned by BlackLab), only contains configs that were retrieved without user credentials.
+     * Configs in use are refreshed in the background before they expire, so requests don't have to wait for BlackLab.
+     * When BlackLab is unreachable, the last good config is used for up to {@link Keys#CACHE_CORPUS_CONFIG_MAX_STALE} seconds.
+     */
+    private final LoadingCache<String, Result<CorpusConfig, Exception>> configCache = new LoadingCache<>(
+            r -> 1000L * config.getInt(r.hasError() ? Keys.CACHE_CORPUS_CONFIG_ERROR_TTL : Keys.CACHE_CORPUS_CONFIG_TTL),
+            r -> r.hasError() ? 0 : 1000L * config.getInt(Keys.CACHE_CORPUS_CONFIG_MAX_STALE),
+            // Not on behalf of any request, but that's fine, as only configs retrieved without credentials are cached.
+            c -> loadSharedCorpusConfig(c, null),
+            (old, fresh) -> old.hasResult() && fresh.getError().filter(MainServlet::isTransientError).isPresent(),
+            cacheRefresher);
+
+    /**
+     * Retrieve a corpus config that's shared between users (i.e. without credentials), and keep a copy on disk for after a restart.
+     * Corpora that are gone (or no longer public) are removed from disk, the copy is kept when BlackLab is just unreachable.
+     */
+    private Result<CorpusConfig, Exception> loadSharedCorpusConfig(String corpus, HttpServletRequest request) {
+        return new BlackLabApi(request, this.config).getCorpusConfig(corpus)
+                .tap(c -> diskCache.put(CORPUS_CONFIGS, corpus, c.toPersisted()))
+                .tapError(e -> {
+                    if (!isTransientError(e)) diskCache.remove(CORPUS_CONFIGS, corpus);
+                });
+    }
+
+    /**
+     * Serve corpus configs from the disk cache until they've been retrieved again, so the first requests after a restart don't wait for BlackLab.
+     * They're refreshed in the background right away, and used for at most {@link Keys#CACHE_CORPUS_CONFIG_MAX_STALE} seconds if that fails.
+     */
+    private void loadCorpusConfigsFromDisk() {
+        Map<String, String> persisted = diskCache.getAll(CORPUS_CONFIGS);
+        persisted.forEach((corpus, value) -> {
+            try {
+                configCache.putStale(corpus, Result.success(CorpusConfig.fromPersisted(value)));
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Ignoring unreadable cached config for corpus " + corpus, e);
+                diskCache.remove(CORPUS_CONFIGS, corpus);
+            }
+        });
+        if (!persisted.isEmpty()) logger.info("Read " + persisted.size() + " corpus configs from the disk cache, refreshing them in the background");
+    }
+
+    /** Whether the error is likely to go away by itself (BlackLab unreachable or overloaded), as opposed to e.g. a corpus that was removed. */
+    private static boolean isTransientError(Exception e) {
+        if (!(e instanceof QueryException)) return false;
+        int code = ((QueryException) e).getHttpStatusCode();
+        return code < 0 || code >= 500;
     }
 
-    // TODO use network-level caching or something, so we automatically handle lifetime, authentication, etc.
-    private static final Map<String, Result<CorpusConfig, Exception>> configCache = new HashMap<>();
     /**
      * Get the corpus config (as returned from blacklab-server), if this is a valid corpus
      *
@@ -207,17 +494,50 @@ public class MainServlet extends HttpServlet {
      * @return the config
      */
     public Result<CorpusConfig, Exception> getCorpusConfig(Optional<String> corpus, HttpServletRequest request, HttpServletResponse response) {
-        // Should only cache when not using authorization, otherwise result may be different across different requests.
-        // Also disable caching for user-corpora, as access permissions may change.
+        // When using authorization, the result may be different for different users (and may change when permissions change),
+        // so those are cached per user, for a shorter time, and only when successful.
 
         // Contact blacklab-server for the config xml file if we have a corpus
-        Function<String, Result<CorpusConfig, Exception>> gen = c -> new BlackLabApi(request, response, this.config).getCorpusConfig(c);
-        synchronized (configCache) {
-            return Result
-                    .from(corpus)
-                    .flatMap(c -> useCache(request) ? configCache.computeIfAbsent(c, gen) : gen.apply(c))
-                    .orError(() -> new FileNotFoundException("No corpus specified"));
-        }
+        Function<String, Result<CorpusConfig, Exception>> gen = c -> new BlackLabApi(request, this.config).getCorpusConfig(c);
+        Optional<String> principal = getCachePrincipal(request);
+        return Result
+                .from(corpus)
+                .flatMap(c -> {
+                    if (useCache(request)) return configCache.get(c, key -> loadSharedCorpusConfig(key, request));
+                    if (principal.isEmpty()) return gen.apply(c);
+                    return principalConfigs.get(principal.get(), c)
+                            .map(Result::<CorpusConfig, Exception>success)
+                            .orElseGet(() -> gen.apply(c).tap(cfg -> principalConfigs.put(principal.get(), c, cfg)));
+                })
+                .orError(() -> new FileNotFoundException("No corpus specified"));
+    }
+
+    /** Lengths of documents seen before, see {@link DocumentLengthIndex}. */
+    public DocumentLengthIndex getDocumentLengths() {
+        return documentLengths;
+    }
+
+    /** Where to keep caches across restarts, see {@link Keys#CACHE_DIR}. */
+    private Optional<Path> getCacheDir() {
+        return Optional.ofNullable(config.get(Keys.CACHE_DIR)).filter(StringUtils::isNotBlank).map(Paths::get);
+    }
+
+    /** Pages of documents that were transformed before they were requested, see {@link nl.inl.corpuswebsite.utils.ArticleUtil#prefetchAdjacentPages}. */
+    public BoundedCache<String, String> getPrefetchedPageCache() {
+        return prefetchedPages;
+    }
+
+    /** Rendered pages that don't depend on the request, see {@link BaseResponse#displayCachedHtmlTemplate(String, String, Runnable)}. */
+    public BoundedCache<String, byte[]> getRenderedPageCache() {
+        return renderedPages;
+    }
+
+    /**
+     * Transformed document contents and metadata, see {@link nl.inl.corpuswebsite.utils.ArticleUtil}.
+     * Only use this for requests where {@link #useCache(HttpServletRequest)} is true.
+     */
+    public BoundedCache<String, String> getRenderedArticleCache() {
+        return renderedArticles;
     }
 
     @Override
@@ -288,58 +608,181 @@ public class MainServlet extends HttpServlet {
             }
         }
 
+        long start = System.nanoTime();
+        BaseResponse br;
         try {
-            try {
-                BaseResponse br = responseClass.getConstructor().newInstance();
-                if (br.isCorpusRequired() && (corpus == null || corpus.isBlank())) {
-                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
-                    return;
-                }
+            br = responseClass.getConstructor().newInstance();
+            if (br.isCorpusRequired() && (corpus == null || corpus.isBlank())) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+        } catch (Exception e) {
+            throw new ServletException(e);
+        }
 
-                br.init(request, response, this, Optional.ofNullable(corpus), pathParameters);
-                br.completeRequest();
-            } catch (QueryException e) {
-                if (e.getHttpStatusCode() != HttpServletResponse.SC_OK) {
-                    response.sendError(e.getHttpStatusCode(), e.getMessage());
-                } else {
-                    response.getWriter().write(e.getMessage());
-                }
-            } catch (ReturnToClientException e) {
-                if (e.getCode() != HttpServletResponse.SC_OK)
-                    response.sendError(e.getCode(), e.getMessage());
-                else if (e.getMessage() != null)
-                    response.getWriter().write(e.getMessage());
+        if (requestExecutor != null && br.isAsync() && request.isAsyncSupported()) {
+            // Release the container's thread while we wait for BlackLab.
+            // No timeout: the upstream timeouts already limit how long this can take, and the task always completes the request.
+            AsyncContext ctx = request.startAsync(request, response);
+            ctx.setTimeout(0);
+            try {
+                requestExecutor.execute(() -> {
+                    try {
+                        respond(br, request, response, corpus, pathParameters);
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, "Error handling request " + request.getRequestURI(), e);
+                        if (!response.isCommitted()) {
+                            try { response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR); } catch (IOException ignored) {}
+                        }
+                    } finally {
+                        observeRequest(responseClass, start);
+                        ctx.complete();
+                    }
+                });
+            } catch (RejectedExecutionException e) { // shutting down
+                ctx.complete();
+                throw new ServletException(e);
             }
+            return;
+        }
+
+        try {
+            respond(br, request, response, corpus, pathParameters);
         } catch (Exception e) {
             throw new ServletException(e);
+        } finally {
+            observeRequest(responseClass, start);
+        }
+    }
+
+    private void respond(BaseResponse br, HttpServletRequest request, HttpServletResponse response, String corpus, List<String> pathParameters) throws Exception {
+        try {
+            br.init(request, response, this, Optional.ofNullable(corpus), pathParameters);
+            br.completeRequest();
+        } catch (QueryException e) {
+            // Part of the page was already sent (see BaseResponse#flushHtmlHeader), all we can do is stop.
+            if (response.isCommitted()) throw e;
+            UpstreamGuard.getInstance().setRetryAfter(response, e.getHttpStatusCode());
+            if (e.getHttpStatusCode() != HttpServletResponse.SC_OK) {
+                response.sendError(e.getHttpStatusCode(), e.getMessage());
+            } else {
+                response.getWriter().write(e.getMessage());
+            }
+        } catch (ReturnToClientException e) {
+            if (response.isCommitted()) throw e;
+            e.getHeaders().forEach((name, values) -> values.forEach(v -> response.addHeader(name, v)));
+            UpstreamGuard.getInstance().setRetryAfter(response, e.getCode());
+            if (e.getCode() != HttpServletResponse.SC_OK)
+                response.sendError(e.getCode(), e.getMessage());
+            else if (e.getMessage() != null)
+                response.getWriter().write(e.getMessage());
+        }
+    }
+
+    private static void observeRequest(Class<? extends BaseResponse> responseClass, long start) {
+        Metrics.getInstance()
+                .histogram("http_request_duration_seconds", "Time spent handling requests, by the type of page.", "response", responseClass.getSimpleName())
+                .observeSince(start);
+    }
+
+    /**
+     * Runs requests that wait on BlackLab (see {@link BaseResponse#isAsync()}), so they don't tie up the container's threads.
+     * Uses virtual threads when available (java 21+), otherwise a pool of {@link Keys#REQUEST_THREADS} threads.
+     */
+    private static ExecutorService createRequestExecutor(int threads) {
+        try {
+            // Through reflection, as we still compile for java 11.
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.info("Handling requests to BlackLab on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            int n = Math.max(1, threads);
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "request-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            logger.info("Virtual threads not available, handling requests to BlackLab on " + n + " threads");
+            return executor;
         }
     }
 
     /**
      * <pre>
      * Wrapper for caching compiled xslt.
-     * See {@link CorpusFileUtil#getStylesheet(CorpusConfig, GlobalConfig, String, HttpServletRequest, HttpServletResponse)}
+     * See {@link CorpusFileUtil#getStylesheet(CorpusConfig, GlobalConfig, String, BlackLabApi)}
+     * Doesn't use the request, so it can be called from other threads (see {@link UpstreamExecutor}).
      * </pre>
      * @param corpus - corpus to get the stylesheet for
      * @param name - the name of the stylesheet, excluding extension (currently supported "article" and "meta")
-     * @return the xsl transformer to use for transformation, note that this is always the same transformer.
+     * @param api - to retrieve the stylesheet from BlackLab, its credentials also decide which cache to use.
+     * @return the xsl transformer to use for transformation, note that this is always the same (shared) transformer, use {@link XslTransformer#withParameters(Map)} to pass parameters.
      */
-    public Result<XslTransformer, TransformerException> getStylesheet(CorpusConfig corpus, String name, HttpServletRequest request, HttpServletResponse response) {
+    public Result<XslTransformer, TransformerException> getStylesheet(CorpusConfig corpus, String name, BlackLabApi api) {
         Optional<String> corpusDataFormat = corpus.getCorpusDataFormat();
-        Function<String, Result<XslTransformer, TransformerException>> gen = __ -> CorpusFileUtil.getStylesheet(corpus, config, name, request, response);
-
         // need to use corpus name in the cache map
         // because corpora can define their own xsl files in their own data directory
-        String key = corpus + "_" + corpusDataFormat.orElse("missing-format") + "_" + name;
-        return this.useCache(request) ? articleTransformers.computeIfAbsent(key, gen) : gen.apply(key);
+        String suffix = "_" + corpusDataFormat.orElse("missing-format") + "_" + name;
+        String key = corpus.getCorpusId() + suffix;
+        // Stylesheets from BlackLab are shared by all corpora with the same format, so when one changes, drop it for all of them.
+        // The new one is compiled again, as XslTransformer notices its contents changed.
+        boolean useCache = useCacheFor(api.getCredential());
+        Function<String, Result<XslTransformer, TransformerException>> gen = __ -> CorpusFileUtil.getStylesheet(corpus, config, name, api,
+                useCache ? diskCache : DiskCache.DISABLED,
+                () -> articleTransformers.keySet().removeIf(k -> k.endsWith(suffix)));
+
+        Optional<String> principal = getCachePrincipalFor(api.getCredential());
+        if (principal.isPresent()) {
+            return principalTransformers.get(principal.get(), key)
+                    .map(Result::<XslTransformer, TransformerException>success)
+                    .orElseGet(() -> gen.apply(key).tap(t -> principalTransformers.put(principal.get(), key, t)));
+        }
+        if (!useCache) return gen.apply(key);
+        cacheLookup("stylesheets", articleTransformers.containsKey(key));
+        return articleTransformers.computeIfAbsent(key, gen);
     }
 
+    /**
+     * Resolved project files (and siblings of those files), keyed by corpus and path, see {@link #getProjectFile(Optional, String)}.
+     * The keys come from request urls, so this is bounded by the number of entries, and files that weren't found are not cached. Created during init.
+     */
+    private BoundedCache<String, Optional<File>> files;
+
+    /**
+     * Find a file in the corpus' config directory, the default config directory, or inside the .war.
+     * See {@link CorpusFileUtil#getProjectFile(String, Optional, Optional, Optional)}.
+     * The result is cached for {@link Keys#CACHE_FILES_TTL} seconds, so repeated requests for the same file don't need to check every directory again.
+     */
     public Optional<File> getProjectFile(Optional<String> corpus, String file) {
-        return CorpusFileUtil.getProjectFile(
-                config.get(Keys.CORPUS_CONFIG_DIR),
-                corpus,
-                Optional.ofNullable(config.get(Keys.DEFAULT_CORPUS_CONFIG)),
-                Optional.of(file));
+        String key = corpus.orElse("") + "\0" + file;
+        return files.get(key).orElseGet(() -> {
+            Optional<File> found = CorpusFileUtil.getProjectFile(
+                    config.get(Keys.CORPUS_CONFIG_DIR),
+                    corpus,
+                    Optional.ofNullable(config.get(Keys.DEFAULT_CORPUS_CONFIG)),
+                    Optional.of(file));
+            // Don't remember paths that don't exist, anyone can make up more of those.
+            found.ifPresent(f -> files.put(key, found));
+            return found;
+        });
+    }
+
+    /**
+     * Find a file next to an existing file, e.g. a precompressed "file.css.gz" next to "file.css". Cached like {@link #getProjectFile(Optional, String)}.
+     * That the sibling doesn't exist is cached too, as there are only as many of those as there are existing files.
+     * @param file the existing file
+     * @param suffix appended to the file's name
+     * @return the sibling, if it exists and is readable
+     */
+    public Optional<File> getSiblingFile(File file, String suffix) {
+        String key = file.getPath() + "\0" + suffix;
+        return files.get(key).orElseGet(() -> {
+            Optional<File> found = Optional.of(new File(file.getPath() + suffix)).filter(File::isFile).filter(File::canRead);
+            files.put(key, found);
+            return found;
+        });
     }
 
     public InputStream getHelpPage(Optional<String> corpus) {
@@ -361,8 +804,29 @@ public class MainServlet extends HttpServlet {
      * @return whether the use the cache for this request
      */
     public boolean useCache(HttpServletRequest request) {
-        Optional<String> auth = Optional.ofNullable(request).flatMap(r -> BlackLabApi.readRequestParameter(r, config.get(Keys.AUTH_SOURCE_TYPE), config.get(Keys.AUTH_SOURCE_NAME)));
-        return Boolean.parseBoolean(this.config.get(Keys.CACHE)) && auth.isEmpty();
+        return useCacheFor(getCredential(request));
+    }
+
+    private boolean useCacheFor(Optional<String> credential) {
+        return Boolean.parseBoolean(this.config.get(Keys.CACHE)) && credential.isEmpty();
+    }
+
+    /**
+     * For requests with credentials, results are cached per user, see {@link PrincipalCache}.
+     * @return identifies the user's credentials, empty if the request has no credentials or caching is disabled.
+     */
+    public Optional<String> getCachePrincipal(HttpServletRequest request) {
+        return getCachePrincipalFor(getCredential(request));
+    }
+
+    private Optional<String> getCachePrincipalFor(Optional<String> credential) {
+        if (!Boolean.parseBoolean(this.config.get(Keys.CACHE))) return Optional.empty();
+        return credential.map(PrincipalCache::principalOf);
+    }
+
+    /** The credential that will be passed on to BlackLab, see {@link BlackLabApi}. */
+    private Optional<String> getCredential(HttpServletRequest request) {
+        return Optional.ofNullable(request).flatMap(r -> BlackLabApi.readRequestParameter(r, config.get(Keys.AUTH_SOURCE_TYPE), config.get(Keys.AUTH_SOURCE_NAME)));
     }
 
     /** Render debug info checkbox in the search interface? */
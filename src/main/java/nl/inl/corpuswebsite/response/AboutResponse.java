@@ -17,12 +17,14 @@ public class AboutResponse extends BaseResponse {
 
     @Override
     protected void completeRequest() {
-        try (InputStream is = servlet.getAboutPage(corpus)) {
-            model.put("content", StringUtils.join(IOUtils.readLines(is, "utf-8"), "\n"));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        displayHtmlTemplate(servlet.getTemplate("contentpage"));
+        // The page is cached until the file changes.
+        String version = servlet.getProjectFile(corpus, "about.inc").map(f -> f.getPath() + "@" + f.lastModified()).orElse("");
+        displayCachedHtmlTemplate("contentpage", version, () -> {
+            try (InputStream is = servlet.getAboutPage(corpus)) {
+                model.put("content", StringUtils.join(IOUtils.readLines(is, "utf-8"), "\n"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
     }
 }
@@ -1,20 +1,35 @@
 package nl.inl.corpuswebsite.response;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServletResponse;
 
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
 import nl.inl.corpuswebsite.BaseResponse;
 import nl.inl.corpuswebsite.utils.ArticleUtil;
 import nl.inl.corpuswebsite.utils.CorpusConfig;
+import nl.inl.corpuswebsite.utils.GlobalConfig;
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 import nl.inl.corpuswebsite.utils.QueryException;
 import nl.inl.corpuswebsite.utils.Result;
+import nl.inl.corpuswebsite.utils.UpstreamGuard;
+import nl.inl.corpuswebsite.utils.WebsiteConfig;
 
 /**
  * We need a rudimentary API for some of the content that needs to processed serverside.
  * At the moment that's these 3 items:
  * - document metadata      /${corpus}/api/docs/${id}           - show the metadata for the document, transformed with the 'meta.xsl' stylesheet for the corpus.
+ * - metadata of documents  /${corpus}/api/docs?ids=${id},${id}  - the same for multiple documents at once, as json: {"docs": {id: html}, "errors": {id: {"status": code, "message": text}}}
  * - document contents      /${corpus}/api/docs/${id}/contents  - show the document's content, transformed with the appropriate 'article.xsl' stylesheet for the corpus.
  * - index metadata         /${corpus}/api/info                 - Return a json of the indexmetadata from BlackLab, but with annotation values listed.
  * <br>
@@ -29,12 +44,21 @@ public class ApiResponse extends BaseResponse {
         super("api", true);
     }
 
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
     // TODO this could probably be cleaned up a little.
     @Override
     protected void completeRequest() throws QueryException {
         if (pathParameters.isEmpty()) throw new QueryException(HttpServletResponse.SC_NOT_FOUND, "No endpoint specified");
         String operation = pathParameters.get(0);
         if (operation.equalsIgnoreCase("docs")) {
+            if (pathParameters.size() < 2 && request.getParameter("ids") != null) {
+                documentsMetadata(request.getParameterValues("ids"));
+                return;
+            }
             if (pathParameters.size() < 2) throw new QueryException(HttpServletResponse.SC_NOT_FOUND, "No document specified. Expected ${corpus}/docs/${docid}[/contents]");
             String document = pathParameters.get(1);
             boolean isContents = pathParameters.size() > 2 && pathParameters.get(2).equalsIgnoreCase("contents");
@@ -46,24 +70,102 @@ public class ApiResponse extends BaseResponse {
     }
 
     public void documentContents(String docId) throws QueryException {
-        new ArticleUtil(servlet, request, response).getTransformedDocument(
-            servlet.getWebsiteConfig(corpus),
-            servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow(),
-            servlet.getGlobalConfig(),
-            docId,
-            Result.empty()
-        )
-        .tapSelf(r -> sendResult(r, "text/html; charset=utf-8"));
+        WebsiteConfig corpusConfig = servlet.getWebsiteConfig(corpus);
+        CorpusConfig corpusMetadata = servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow();
+        GlobalConfig config = servlet.getGlobalConfig();
+
+        try (ArticleUtil articleUtil = new ArticleUtil(servlet, request)) {
+            if (!config.getBool(Keys.ARTICLE_STREAMING)) {
+                articleUtil.getTransformedDocument(corpusConfig, corpusMetadata, config, docId, Result.empty())
+                    .tapSelf(r -> sendCacheableResult(r, "text/html; charset=utf-8"));
+                return;
+            }
+
+            Result<ArticleUtil.DocumentStream, QueryException> r = articleUtil.streamTransformedDocument(corpusConfig, corpusMetadata, config, docId, Result.empty());
+            if (r.hasError()) {
+                sendResult(Result.error(r.getError().get()), "text/html; charset=utf-8");
+                return;
+            }
+            try (ArticleUtil.DocumentStream contents = r.getResult().orElseThrow()) {
+                // We can only send an etag if we know the contents before sending them.
+                Optional<String> cached = contents.getCachedContents();
+                if (cached.isPresent()) {
+                    sendCacheableResult(Result.success(cached.get()), "text/html; charset=utf-8");
+                    return;
+                }
+
+                response.setHeader("Content-Type", "text/html; charset=utf-8");
+                response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+                // Not in a try-with-resources: on error, the partial document must not be finished.
+                Writer out = new OutputStreamWriter(openOutputStream(), StandardCharsets.UTF_8);
+                contents.writeTo(out);
+                out.close();
+            } catch (QueryException e) {
+                // Part of the document may have been sent already, only report the error properly if that isn't the case.
+                if (response.isCommitted()) throw new RuntimeException(e);
+                // Also clears the Content-Encoding, if compression had started.
+                response.reset();
+                response.addHeader("Access-Control-Allow-Origin", "*");
+                sendResult(Result.error(e), "text/html; charset=utf-8");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     public void documentMetadata(String docId) throws QueryException {
-        new ArticleUtil(servlet, request, response).getTransformedMetadata(
-            servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow(),
-            servlet.getWebsiteConfig(corpus),
-            servlet.getGlobalConfig(),
-            docId
-        )
-        .tapSelf(r -> sendResult(r, "text/html; charset=utf-8"));
+        try (ArticleUtil articleUtil = new ArticleUtil(servlet, request)) {
+            articleUtil.getTransformedMetadata(
+                servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow(),
+                servlet.getWebsiteConfig(corpus),
+                servlet.getGlobalConfig(),
+                docId
+            )
+            .tapSelf(r -> sendCacheableResult(r, "text/html; charset=utf-8"));
+        }
+    }
+
+    /**
+     * Metadata for multiple documents, so a page of results doesn't need a request per document.
+     * @param ids comma-separated document ids, the parameter may also be repeated.
+     */
+    public void documentsMetadata(String[] ids) throws QueryException {
+        List<String> docIds = Arrays.stream(ids)
+                .flatMap(s -> Arrays.stream(s.split(",")))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .distinct()
+                .collect(Collectors.toList());
+        GlobalConfig config = servlet.getGlobalConfig();
+        if (docIds.isEmpty()) throw new QueryException(HttpServletResponse.SC_BAD_REQUEST, "No documents specified. Expected ${corpus}/docs?ids=${docid},${docid}");
+        if (docIds.size() > config.getInt(Keys.API_BATCH_MAX)) throw new QueryException(HttpServletResponse.SC_BAD_REQUEST, "Too many documents, at most " + config.getInt(Keys.API_BATCH_MAX) + " can be requested at once");
+
+        try (ArticleUtil articleUtil = new ArticleUtil(servlet, request)) {
+            articleUtil.getTransformedMetadata(
+                servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow(),
+                servlet.getWebsiteConfig(corpus),
+                config,
+                docIds
+            )
+            .map(ApiResponse::toJson)
+            .tapSelf(r -> sendCacheableResult(r, "application/json; charset=utf-8"));
+        }
+    }
+
+    private static String toJson(Map<String, Result<String, QueryException>> results) {
+        JsonObject docs = new JsonObject();
+        JsonObject errors = new JsonObject();
+        results.forEach((docId, r) -> r.ifPresentOrElse(html -> docs.addProperty(docId, html), e -> {
+            JsonObject error = new JsonObject();
+            error.addProperty("status", e.getHttpStatusCode());
+            error.addProperty("message", e.getMessage());
+            errors.add(docId, error);
+        }));
+        JsonObject json = new JsonObject();
+        json.add("docs", docs);
+        json.add("errors", errors);
+        // The html is a string in the json either way, no need to escape it further.
+        return new GsonBuilder().disableHtmlEscaping().create().toJson(json);
     }
 
     public void indexMetadata() {
@@ -73,19 +175,34 @@ public class ApiResponse extends BaseResponse {
             .tapSelf(r -> sendResult(r, "application/json; charset=utf-8"));
     }
 
+    /**
+     * Like {@link #sendResult(Result, String)}, but allows the client to cache the response.
+     * The response gets an ETag, so the client can revalidate its copy, receiving a 304 if it's still current.
+     * Responses to requests with credentials are marked private, so they're not stored by shared caches.
+     */
+    protected void sendCacheableResult(Result<String, QueryException> r, String contentType) {
+        if (r.hasResult()) {
+            response.setHeader("Cache-Control", servlet.useCache(request) ? "no-cache" : "private, no-cache");
+            if (isNotModified(etag(r.getResult().get()))) return;
+        }
+        sendResult(r, contentType);
+    }
+
     protected void sendResult(Result<String, QueryException> r, String contentType) {
         r.ifPresentOrElse(contents -> {
             try {
                 response.setHeader("Content-Type", contentType);
                 response.setCharacterEncoding(StandardCharsets.UTF_8.name());
-                response.getWriter().write(contents);
-                response.flushBuffer();
+                try (Writer out = new OutputStreamWriter(openOutputStream(), StandardCharsets.UTF_8)) {
+                    out.write(contents);
+                }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }, error -> {
             try {
                 response.setStatus(error.getHttpStatusCode());
+                UpstreamGuard.getInstance().setRetryAfter(response, error.getHttpStatusCode());
                 response.getWriter().print(error.getMessage());
                 response.flushBuffer();
             } catch (IOException e) {
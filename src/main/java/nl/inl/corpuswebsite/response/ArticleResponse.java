@@ -1,19 +1,23 @@
 package nl.inl.corpuswebsite.response;
 
 import java.io.IOException;
+import java.util.Optional;
 
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.velocity.runtime.Renderable;
 
 import nl.inl.corpuswebsite.BaseResponse;
 import nl.inl.corpuswebsite.utils.ArticleUtil;
 import nl.inl.corpuswebsite.utils.CorpusConfig;
 import nl.inl.corpuswebsite.utils.GlobalConfig;
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 import nl.inl.corpuswebsite.utils.PaginationInfo;
 import nl.inl.corpuswebsite.utils.QueryException;
 import nl.inl.corpuswebsite.utils.Result;
 import nl.inl.corpuswebsite.utils.ReturnToClientException;
+import nl.inl.corpuswebsite.utils.UpstreamExecutor;
 import nl.inl.corpuswebsite.utils.WebsiteConfig;
 
 public class ArticleResponse extends BaseResponse {
@@ -39,6 +43,11 @@ public class ArticleResponse extends BaseResponse {
         return pid;
     }
 
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
     @Override
     protected void completeRequest() throws IOException, QueryException {
         // parameters for the requesting of metadata and content from blacklab
@@ -48,23 +57,73 @@ public class ArticleResponse extends BaseResponse {
         WebsiteConfig corpusConfig = servlet.getWebsiteConfig(this.corpus);
         GlobalConfig config = servlet.getGlobalConfig();
 
-        ArticleUtil articleUtil = new ArticleUtil(servlet, request, response);
-        Result<String, QueryException> metadata = articleUtil.getDocumentMetadata(corpusConfig, config, pid);
-        PaginationInfo pagination = ArticleUtil.getPaginationInfo(corpusConfig, request, metadata);
-        Result<String, QueryException> transformedMetadata = articleUtil.transformMetadata(corpus, corpusConfig, config, metadata);
-        Result<String, Exception> transformedContent = articleUtil.getTransformedDocument(corpusConfig, corpus, config, pid, metadata)
-            .mapError(QueryException.class, e -> {
-                // This one should get a nice error message
-                if (e.getHttpStatusCode() == 401) return new ArticleContentRestrictedException();
-                // return the original error otherwise
-                return e;
+        // override corpus display set in base response
+        // Only do this if the corpus defines a displayName and search.xml does not
+        if (corpusConfig.displayNameIsFallback()) {
+            corpus.getDisplayName().ifPresent(displayName -> {
+                model.put("displayName", displayName);
+                model.put("displayNameIsFallback", false);
             });
+        }
+        try (ArticleUtil articleUtil = new ArticleUtil(servlet, request)) {
+            // The article stylesheet doesn't depend on the document, so load it while we retrieve the metadata.
+            articleUtil.preloadArticleStylesheet(corpusConfig, corpus, config);
+            Result<String, QueryException> metadata = articleUtil.getDocumentMetadata(corpusConfig, config, pid);
+            // The rest of the page waits on the contents, so send the header now. Not before the metadata is in:
+            // BlackLab may want the user to log in first, and that needs the status and headers of the response.
+            if (metadata.hasResult() && config.getBool(Keys.ARTICLE_EARLY_FLUSH)) flushHtmlHeader();
+            PaginationInfo pagination = articleUtil.paginate(corpusConfig, corpus, config, pid, metadata);
+            // Once we know the document length, transform the metadata while retrieving the contents.
+            UpstreamExecutor.Stage<String, QueryException> transformedMetadata = articleUtil.transformMetadataAsync(corpus, corpusConfig, config, metadata);
+            if (config.getBool(Keys.ARTICLE_STREAMING)) {
+                // Only open the connection to BlackLab here, the contents are streamed into the page while the template is being rendered.
+                Result<ArticleUtil.DocumentStream, Exception> content = articleUtil.streamTransformedDocument(corpusConfig, corpus, config, pid, metadata)
+                    .mapError(QueryException.class, ArticleResponse::mapContentError);
+                try {
+                    putContent(content.map(ArticleResponse::renderable).getResult(), content.getError());
+                    displayPage(pid, pagination, transformedMetadata.get());
+                } finally {
+                    content.tap(ArticleUtil.DocumentStream::close);
+                }
+            } else {
+                Result<String, Exception> content = articleUtil.getTransformedDocument(corpusConfig, corpus, config, pid, metadata)
+                    .mapError(QueryException.class, ArticleResponse::mapContentError);
+                putContent(content.getResult(), content.getError());
+                displayPage(pid, pagination, transformedMetadata.get());
+            }
+            // The user is likely to page on, get the next page ready while they're reading this one.
+            articleUtil.prefetchAdjacentPages(corpusConfig, corpus, config, pid, pagination);
+        }
+    }
+
+    private static Exception mapContentError(QueryException e) {
+        // This one should get a nice error message
+        if (e.getHttpStatusCode() == 401) return new ArticleContentRestrictedException();
+        // return the original error otherwise
+        return e;
+    }
 
+    /** Write the document into the template while it's being rendered. Errors can't be reported separately at that point, so show them inline. */
+    private static Renderable renderable(ArticleUtil.DocumentStream content) {
+        return (context, writer) -> {
+            try {
+                content.writeTo(writer);
+            } catch (QueryException e) {
+                writer.write("<div class=\"alert alert-danger\" style=\"white-space: pre-line;\">" + esc.html(e.getMessage()) + "</div>");
+            }
+            return true;
+        };
+    }
+
+    private void putContent(Optional<?> content, Optional<Exception> error) {
+        model.put("article_content_restricted", error.filter(e -> e instanceof ArticleContentRestrictedException).isPresent());
+        model.put("article_content", content.isPresent() ? content.get() : "An error occurred while retrieving the document contents");
+        model.put("article_content_error", error.orElse(null));
+    }
+
+    private void displayPage(String pid, PaginationInfo pagination, Result<String, QueryException> transformedMetadata) {
         model.put("article_meta", transformedMetadata.getResult().orElse(""));
         model.put("article_meta_error", transformedMetadata.getError().orElse(null));
-        model.put("article_content_restricted", transformedContent.getError().filter(e -> e instanceof ArticleContentRestrictedException).isPresent());
-        model.put("article_content", transformedContent.getResult().orElse("An error occurred while retrieving the document contents"));
-        model.put("article_content_error", transformedContent.getError().orElse(null));
         model.put("docId", pid);
         model.put("docLength", pagination.documentLength);
         model.put("pageSize", pagination.pageSize);
@@ -72,15 +131,6 @@ public class ArticleResponse extends BaseResponse {
         model.put("pageEnd", pagination.clientPageEnd);
         request.getParameter("field");
 
-        // override corpus display set in base response
-        // Only do this if the corpus defines a displayName and search.xml does not
-        if (corpusConfig.displayNameIsFallback()) {
-            corpus.getDisplayName().ifPresent(displayName -> {
-                model.put("displayName", displayName);
-                model.put("displayNameIsFallback", false);
-            });
-        }
-
         displayHtmlTemplate(servlet.getTemplate("article"));
     }
 }
@@ -1,12 +1,15 @@
 package nl.inl.corpuswebsite.response;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -14,13 +17,23 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
-
 import nl.inl.corpuswebsite.BaseResponse;
 import nl.inl.corpuswebsite.MainServlet;
 
+/**
+ * <pre>
+ * Serves the files in the 'static' directory of a corpus' config directory (or the default config directory).
+ *
+ * Supports conditional requests (ETag/If-None-Match and Last-Modified/If-Modified-Since), single byte ranges,
+ * and precompressed siblings: when the client accepts it, "file.js.br" or "file.js.gz" is sent instead of "file.js" if it exists.
+ * File contents are sent by the container using sendfile when it supports that (Tomcat with NIO/APR), otherwise through {@link FileChannel#transferTo}.
+ * </pre>
+ */
 public class CorporaDataResponse extends BaseResponse {
 
+    /** Precompressed variants, in order of preference: [content-encoding, file suffix] */
+    private static final String[][] ENCODINGS = { { "br", ".br" }, { "gzip", ".gz" } };
+
     public CorporaDataResponse() {
         super("data", false); // allow getting static files without corpus, this normally never happens, but we clear the corpus for /default/ static files
     }
@@ -59,18 +72,143 @@ public class CorporaDataResponse extends BaseResponse {
                 return;
             }
 
-            try (InputStream is = new FileInputStream(file.get())) {
-                // Headers must be set before writing the response.
-                String mime = servlet.getServletContext().getMimeType(pathString);
-                response.setHeader("Cache-Control", "public, max-age=604800" /* 7 days */);
-                response.setHeader("Content-Length", Long.toString(file.get().length()));
-                response.setContentType(mime);
+            // Headers must be set before writing the response.
+            String mime = servlet.getServletContext().getMimeType(pathString);
+            response.setHeader("Cache-Control", "public, max-age=604800" /* 7 days */);
+            response.setHeader("Vary", "Accept-Encoding");
+            response.setContentType(mime);
+
+            File f = file.get();
+            String encoding = null;
+            for (String[] e : ENCODINGS) {
+                Optional<File> compressed = accepts(e[0]) ? servlet.getSiblingFile(f, e[1]) : Optional.empty();
+                if (compressed.isPresent()) {
+                    f = compressed.get();
+                    encoding = e[0];
+                    break;
+                }
+            }
+            if (encoding != null) response.setHeader("Content-Encoding", encoding);
+
+            // Every encoding is a different representation, so give them different tags.
+            long length = f.length();
+            long lastModified = f.lastModified();
+            String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + (encoding != null ? "-" + encoding : "") + "\"";
+            response.setDateHeader("Last-Modified", lastModified);
+            if (isNotModified(etag) || isNotModifiedSince(lastModified)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
 
-                IOUtils.copy(is, response.getOutputStream());
+            response.setHeader("Accept-Ranges", "bytes");
+            long start = 0;
+            long end = length - 1;
+            long[] range = getRange(length, etag, lastModified);
+            if (range != null && range.length == 0) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            } else if (range != null) {
+                start = range[0];
+                end = range[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
             }
+            response.setHeader("Content-Length", Long.toString(end - start + 1));
+
+            send(f, start, end - start + 1);
         } catch (InvalidPathException e1) { // runtimeException from Path.resolve; when weird paths are being requested
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
     }
+
+    private boolean accepts(String encoding) {
+        String accept = request.getHeader("Accept-Encoding");
+        if (accept == null) return false;
+        return Arrays.stream(accept.split(","))
+                .map(String::trim)
+                .map(String::toLowerCase)
+                .anyMatch(e -> e.equals(encoding) || (e.startsWith(encoding + ";") && !e.replace(" ", "").endsWith("q=0")));
+    }
+
+    /** If-Modified-Since is only used when the client didn't send If-None-Match. */
+    private boolean isNotModifiedSince(long lastModified) {
+        if (request.getHeader("If-None-Match") != null) return false;
+        try {
+            long since = request.getDateHeader("If-Modified-Since");
+            // http dates have second precision
+            return since != -1 && lastModified / 1000 <= since / 1000;
+        } catch (IllegalArgumentException e) {
+            return false; // unparseable date, ignore it
+        }
+    }
+
+    /**
+     * Parse the Range header. Only a single range is supported, for multiple ranges the whole file is sent (which is allowed).
+     * @return null to send the whole file, an empty array if the range can't be satisfied, otherwise the first and last byte to send.
+     */
+    private long[] getRange(long length, String etag, long lastModified) {
+        String header = request.getHeader("Range");
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) return null;
+
+        // If-Range: only send the range if the file is unchanged, otherwise send all of it.
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null) {
+            if (ifRange.startsWith("\"")) {
+                if (!ifRange.equals(etag)) return null;
+            } else {
+                try {
+                    if (request.getDateHeader("If-Range") / 1000 != lastModified / 1000) return null;
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) return null;
+        try {
+            long start, end;
+            if (dash == 0) { // suffix: the last n bytes
+                long n = Long.parseLong(spec.substring(1));
+                if (n == 0) return new long[0];
+                start = Math.max(0, length - n);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (start >= length || start > end) return new long[0];
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null; // invalid ranges are ignored
+        }
+    }
+
+    private void send(File f, long start, long count) throws IOException {
+        if (count <= 0) return;
+
+        // Let the container send the file straight from the filesystem cache to the socket.
+        // It also takes care of closing the file.
+        if (Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            request.setAttribute("org.apache.tomcat.sendfile.filename", f.getAbsolutePath());
+            request.setAttribute("org.apache.tomcat.sendfile.start", start);
+            request.setAttribute("org.apache.tomcat.sendfile.end", start + count);
+            return;
+        }
+
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = count;
+            while (remaining > 0) {
+                long n = in.transferTo(position, remaining, out);
+                if (n <= 0) break; // file was truncated while we were sending it
+                position += n;
+                remaining -= n;
+            }
+        }
+    }
 }
@@ -19,6 +19,6 @@ public class CorporaResponse extends BaseResponse {
 
     @Override
     protected void completeRequest() {
-        displayHtmlTemplate(servlet.getTemplate("corpora"));
+        displayCachedHtmlTemplate("corpora", "", () -> {});
     }
 }
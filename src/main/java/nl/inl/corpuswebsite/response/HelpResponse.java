@@ -17,15 +17,17 @@ public class HelpResponse extends BaseResponse {
 
     @Override
     protected void completeRequest() {
-        try (InputStream is = servlet.getHelpPage(corpus)) {
-            if (is != null) {
-                model.put("content", StringUtils.join(IOUtils.readLines(is, "utf-8"), "\n"));
+        // The page is cached until the file changes.
+        String version = servlet.getProjectFile(corpus, "help.inc").map(f -> f.getPath() + "@" + f.lastModified()).orElse("");
+        displayCachedHtmlTemplate("contentpage", version, () -> {
+            try (InputStream is = servlet.getHelpPage(corpus)) {
+                if (is != null) {
+                    model.put("content", StringUtils.join(IOUtils.readLines(is, "utf-8"), "\n"));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        displayHtmlTemplate(servlet.getTemplate("contentpage"));
+        });
     }
 
 }
@@ -0,0 +1,34 @@
+package nl.inl.corpuswebsite.response;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletResponse;
+
+import nl.inl.corpuswebsite.BaseResponse;
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+import nl.inl.corpuswebsite.utils.Metrics;
+import nl.inl.corpuswebsite.utils.QueryException;
+
+/** Serve the contents of {@link Metrics} in the Prometheus text format. */
+public class MetricsResponse extends BaseResponse {
+
+    public MetricsResponse() {
+        super("metrics", false);
+    }
+
+    @Override
+    protected void completeRequest() throws IOException, QueryException {
+        if (!servlet.getGlobalConfig().getBool(Keys.METRICS_ENABLED)) {
+            throw new QueryException(HttpServletResponse.SC_NOT_FOUND, "Metrics are disabled");
+        }
+
+        response.setCharacterEncoding(OUTPUT_ENCODING);
+        response.setContentType("text/plain; version=0.0.4");
+        response.setHeader("Cache-Control", "no-store");
+        try (Writer w = new OutputStreamWriter(response.getOutputStream(), OUTPUT_ENCODING)) {
+            Metrics.getInstance().writeTo(w);
+        }
+    }
+}
@@ -10,6 +10,6 @@ public class OidcCallbackResponse extends BaseResponse {
 
     @Override
     protected void completeRequest() {
-        displayHtmlTemplate(servlet.getTemplate("callback"));
+        displayCachedHtmlTemplate("callback", "", () -> {});
     }
 }
@@ -0,0 +1,26 @@
+package nl.inl.corpuswebsite.response;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import nl.inl.corpuswebsite.BaseResponse;
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/** Readiness check for load balancers: 503 until startup warmup (see {@link Keys#WARMUP_CORPORA}) is done, 200 after. */
+public class ReadyResponse extends BaseResponse {
+
+    public ReadyResponse() {
+        super("ready", false);
+    }
+
+    @Override
+    protected void completeRequest() throws IOException {
+        boolean ready = servlet.isReady();
+        response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setCharacterEncoding(OUTPUT_ENCODING);
+        response.setContentType("text/plain");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(ready ? "ready" : "warming up");
+    }
+}
@@ -10,6 +10,6 @@ public class RemoteIndexResponse extends BaseResponse {
 
     @Override
     protected void completeRequest() {
-        displayHtmlTemplate(servlet.getTemplate("remote-index"));
+        displayCachedHtmlTemplate("remote-index", "", () -> {});
     }
 }
@@ -1,11 +1,34 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.TransformerException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
@@ -24,27 +47,41 @@ import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
  * The GlobalConfig holds the directory where we can find these stylesheets.
  * The WebsiteConfig holds the page size of the corpus, which we need to calculate pagination.
  * The MainServlet hold our xslt cache.
+ *
+ * Independent steps (such as loading the article stylesheet and retrieving the document) run in parallel on the {@link UpstreamExecutor}.
+ * Those never use the request or response: the credentials are taken from the request up front (see {@link BlackLabApi}).
+ * Always close this when done with the request, so steps nobody waited for are cancelled.
  * </pre>
  */
-public class ArticleUtil {
+public class ArticleUtil implements AutoCloseable {
 
     private static final Logger logger = Logger.getLogger(ArticleUtil.class.getName());
 
-    /** Matches xml open/void tags &lt;namespace:tagname attribute="value"/&gt; excluding hl tags, as those are inserted by blacklab and can result in false positives */
-    private static final Pattern XML_TAG_PATTERN = Pattern.compile("<([\\w]+:)?((?!(hl|blacklabResponse|[xX][mM][lL])\\b)[\\w.]+)(\\s+[\\w\\.:]+=\"[:/()='+\\-\\w\\s,]*\")*/?>");
+    /** How much of a streamed document to inspect when deciding whether it contains xml. */
+    private static final int SNIFF_LENGTH = XmlSniffer.SNIFF_LENGTH;
+
+    /** Keys of pages currently being prefetched, so the same page isn't prefetched twice when it's requested in quick succession. */
+    private static final Set<String> prefetching = ConcurrentHashMap.newKeySet();
 
     private final MainServlet servlet;
     private final HttpServletRequest request;
-    private final HttpServletResponse response;
+    /** Created from the request on its own thread, so the steps running in the background can use it. */
+    private final BlackLabApi api;
+
+    /** Tasks started for this request, so we can wait for them to finish when closing. */
+    private final List<UpstreamExecutor.Stage<?, ?>> stages = new ArrayList<>();
 
-    public ArticleUtil(MainServlet servlet, HttpServletRequest request, HttpServletResponse response) {
+    /** Set once the article stylesheet is being loaded in the background. */
+    private UpstreamExecutor.Stage<XslTransformer, TransformerException> articleStylesheet;
+
+    public ArticleUtil(MainServlet servlet, HttpServletRequest request) {
         this.servlet = servlet;
         this.request = request;
-        this.response = response;
+        this.api = new BlackLabApi(request, servlet.getGlobalConfig());
     }
 
     public Result<String, QueryException> getDocumentMetadata(WebsiteConfig corpus, GlobalConfig config, String docId) {
-        return new BlackLabApi(request, response, config)
+        return api
                 .getDocumentMetadata(corpus.getCorpusId().orElseThrow(), docId)
                 .mapError(e -> {
                     // when blacklab returns 401, we need to return a 401 to the user (unauthorized - IE you can't do this unless you log in - please log in and try again)
@@ -56,23 +93,59 @@ public class ArticleUtil {
     }
 
     public Result<String, QueryException> getDocumentContent(WebsiteConfig corpusConfig, GlobalConfig config, String docId, PaginationInfo page) {
+        return documentContents(corpusConfig, config, docId, page, BlackLabApi::getDocumentContents);
+    }
+
+    /** Like {@link #getDocumentContent(WebsiteConfig, GlobalConfig, String, PaginationInfo)}, but doesn't read the contents. The returned connection must be closed. */
+    public Result<UpstreamClient.Connection, QueryException> streamDocumentContent(WebsiteConfig corpusConfig, GlobalConfig config, String docId, PaginationInfo page) {
+        return documentContents(corpusConfig, config, docId, page, BlackLabApi::streamDocumentContents);
+    }
+
+    private interface ContentsGetter<T> {
+        Result<T, QueryException> get(BlackLabApi api, String corpus, String docId, Optional<String> field, Optional<String> searchfield, Optional<String> blacklabQuery,
+                Optional<String> pattgapdata, Optional<Integer> pageStart, Optional<Integer> pageEnd);
+    }
+
+    /** What to retrieve from the document, apart from the page. Copied from the request, so it can be used after the request is done. */
+    private static class ContentsQuery {
+        final Optional<String> field;
+        final Optional<String> searchfield;
+        final Optional<String> query;
+        final Optional<String> pattgapdata;
+
+        ContentsQuery(Optional<String> field, Optional<String> searchfield, Optional<String> query, Optional<String> pattgapdata) {
+            this.field = field;
+            this.searchfield = searchfield;
+            this.query = query;
+            this.pattgapdata = pattgapdata;
+        }
+    }
+
+    private ContentsQuery contentsQuery() {
         // Search a different field than the one we're displaying content from?
         // (used for parallel corpora, where a query can return hits from a different field than the one that was searched,
         //  e.g. search the contents__en field using query rfield('the' -->nl _, 'nl') to find the Dutch translation of 'the')
         Optional<String> fieldToShow = getParameter("field", request); // optional - if different from the default field (left up BlackLab)
         Optional<String> fieldToSearch = getParameter("searchfield", request) ; // optional, if different from default field.
         Optional<String> queryTargetField = fieldToSearch.isPresent() && !fieldToSearch.equals(fieldToShow) ? fieldToShow : Optional.empty();
+        return new ContentsQuery(fieldToShow, fieldToSearch, optTargetField(getParameter("query", request), queryTargetField), getParameter("pattgapdata", request));
+    }
+
+    private <T> Result<T, QueryException> documentContents(WebsiteConfig corpusConfig, GlobalConfig config, String docId, PaginationInfo page, ContentsGetter<T> getter) {
+        return documentContents(api, corpusConfig.getCorpusId().orElseThrow(), docId, contentsQuery(), page, getter);
+    }
 
-        return new BlackLabApi(request, response, config)
-            .getDocumentContents(
-                    corpusConfig.getCorpusId().orElseThrow(),
-                    docId,
-                    fieldToShow,
-                    fieldToSearch,
-                    optTargetField(getParameter("query", request), queryTargetField),
-                    getParameter("pattgapdata", request),
-                    page.blacklabPageStart,
-                    page.blacklabPageEnd
+    private static <T> Result<T, QueryException> documentContents(BlackLabApi api, String corpusId, String docId, ContentsQuery q, PaginationInfo page, ContentsGetter<T> getter) {
+        return getter.get(
+                api,
+                corpusId,
+                docId,
+                q.field,
+                q.searchfield,
+                q.query,
+                q.pattgapdata,
+                page.blacklabPageStart,
+                page.blacklabPageEnd
             )
             .mapError(e -> {
                 // when blacklab returns 401, we need to return a 401 to the user (unauthorized - IE you can't do this unless you log in - please log in and try again)
@@ -92,7 +165,7 @@ public class ArticleUtil {
      * why can't BlackLab do this itself? Will the wrong hits become highlighted if we don't do this?
      * And what even happens if we don't do this...?
      */
-    private Optional<String> optTargetField(Optional<String> query, Optional<String> targetfield) {
+    private static Optional<String> optTargetField(Optional<String> query, Optional<String> targetfield) {
         if (query.isPresent() && targetfield.isPresent()) {
             String f = targetfield.get().replaceAll("'", "\\'");
             return Optional.of("rfield(" + query.get() + ", '" + f + "')");
@@ -105,21 +178,23 @@ public class ArticleUtil {
      * These are defined and documented in the builtin search.xml 
      * The user can add their own parameters there.
      * Take care to update the search.xml file if you add new parameters here.
-     * @param trans
      * @param config
      * @param corpus
+     * @return the parameters to pass to the stylesheet
      */
-    private void addStandardXsltParameters(XslTransformer trans, GlobalConfig config, WebsiteConfig corpus) {
+    private Map<String, String> getStandardXsltParameters(GlobalConfig config, WebsiteConfig corpus) {
         String baseUrl = config.get(Keys.CF_URL_ON_CLIENT);
         String corpusId = corpus.getCorpusId().orElseThrow();
         String corpusUrl = baseUrl + "/" + corpus.getCorpusId().orElseThrow();
 
+        Map<String, String> params = new HashMap<>();
         // contextRoot is deprecated, but still used in some stylesheets.
-        trans.addParameter("contextRoot", baseUrl);
-        trans.addParameter("contextPath", baseUrl);
-        trans.addParameter("corpusId", corpusId);
-        trans.addParameter("corpusPath", corpusUrl);
-        corpus.getXsltParameters().forEach(trans::addParameter);
+        params.put("contextRoot", baseUrl);
+        params.put("contextPath", baseUrl);
+        params.put("corpusId", corpusId);
+        params.put("corpusPath", corpusUrl);
+        params.putAll(corpus.getXsltParameters());
+        return params;
     }
 
     /**
@@ -128,7 +203,7 @@ public class ArticleUtil {
      * @param corpusMetadata required for page size
      * @param config required for authenticating with BlackLab
      * @param docId required for retrieving the document
-     * @param docMetadata required for pagination (need to know document length). Will be retrieved if not provided.
+     * @param docMetadata required for pagination (need to know document length). Will be retrieved if not provided, and the length isn't known yet.
      * @return the transformed document contents or an exception if the transformation failed, network failed, etc.
      */
     public Result<String, QueryException> getTransformedDocument(
@@ -138,12 +213,50 @@ public class ArticleUtil {
             String docId,
             Result<String, QueryException> docMetadata
     ) {
+        preloadArticleStylesheet(corpus, corpusMetadata, config);
+        Optional<String> cacheKey = documentCacheKey(corpus, corpusMetadata, config, docId);
+        Optional<String> cached = cacheKey.flatMap(servlet.getRenderedArticleCache()::get);
+        if (cached.isPresent()) return Result.success(cached.get());
+
         // Metadata required for pagination (need to know document length)
-        Result<String, QueryException> metadata = docMetadata.or(() -> getDocumentMetadata(corpus, config, docId));
-        PaginationInfo pagination = getPaginationInfo(corpus, request, metadata);
+        PaginationInfo pagination = paginate(corpus, corpusMetadata, config, docId, docMetadata);
+        Optional<String> prefetched = takePrefetched(corpus, corpusMetadata, config, docId, pagination);
+        if (prefetched.isPresent()) {
+            cacheKey.ifPresent(key -> servlet.getRenderedArticleCache().put(key, prefetched.get()));
+            return Result.success(prefetched.get());
+        }
         Result<String, QueryException> contents = getDocumentContent(corpus, config, docId, pagination);
 
-        return transformDocument(corpus, corpusMetadata, config, contents);
+        return transformDocument(corpus, corpusMetadata, config, contents)
+                .tap(html -> cacheKey.ifPresent(key -> servlet.getRenderedArticleCache().put(key, html)));
+    }
+
+    /**
+     * Like {@link #getTransformedDocument(WebsiteConfig, CorpusConfig, GlobalConfig, String, Result)},
+     * but the contents are not read from BlackLab yet. Instead they're transformed straight into a writer by {@link DocumentStream#writeTo(Writer)}.
+     * This way the document never needs to be held in memory in its entirety.
+     * The returned stream must be closed.
+     */
+    public Result<DocumentStream, QueryException> streamTransformedDocument(
+            WebsiteConfig corpus,
+            CorpusConfig corpusMetadata,
+            GlobalConfig config,
+            String docId,
+            Result<String, QueryException> docMetadata
+    ) {
+        preloadArticleStylesheet(corpus, corpusMetadata, config);
+        Optional<String> cacheKey = documentCacheKey(corpus, corpusMetadata, config, docId);
+        Optional<String> cached = cacheKey.flatMap(servlet.getRenderedArticleCache()::get);
+        if (cached.isPresent()) return Result.success(new DocumentStream(cached.get()));
+
+        PaginationInfo pagination = paginate(corpus, corpusMetadata, config, docId, docMetadata);
+        Optional<String> prefetched = takePrefetched(corpus, corpusMetadata, config, docId, pagination);
+        if (prefetched.isPresent()) {
+            cacheKey.ifPresent(key -> servlet.getRenderedArticleCache().put(key, prefetched.get()));
+            return Result.success(new DocumentStream(prefetched.get()));
+        }
+        return streamDocumentContent(corpus, config, docId, pagination)
+                .map(connection -> new DocumentStream(connection, corpus, corpusMetadata, config, cacheKey));
     }
 
     public Result<String, QueryException> getTransformedMetadata(
@@ -152,38 +265,522 @@ public class ArticleUtil {
         GlobalConfig config,
         String docId
     ) {
+        Optional<String> cacheKey = metadataCacheKey(corpus, corpusConfig, config, docId);
+        Optional<String> cached = cacheKey.flatMap(servlet.getRenderedArticleCache()::get);
+        if (cached.isPresent()) return Result.success(cached.get());
+
         Result<String, QueryException> meta = getDocumentMetadata(corpusConfig, config, docId);
-        return transformMetadata(corpus, corpusConfig, config, meta);
+        return transformMetadata(corpus, corpusConfig, config, meta)
+                .tap(html -> cacheKey.ifPresent(key -> servlet.getRenderedArticleCache().put(key, html)));
+    }
+
+    /**
+     * <pre>
+     * Like {@link #getTransformedMetadata(CorpusConfig, WebsiteConfig, GlobalConfig, String)}, for multiple documents at once.
+     * The meta stylesheet is loaded once and used for all documents.
+     * Documents are retrieved and transformed in parallel, on at most {@link Keys#API_BATCH_CONCURRENCY} threads.
+     * </pre>
+     * @return the result for every document, in the same order as the ids. An error if the stylesheet could not be loaded.
+     */
+    public Result<Map<String, Result<String, QueryException>>, QueryException> getTransformedMetadata(
+        CorpusConfig corpus,
+        WebsiteConfig corpusConfig,
+        GlobalConfig config,
+        List<String> docIds
+    ) {
+        Result<XslTransformer, QueryException> stylesheet = servlet.getStylesheet(corpus, "meta", api)
+                .map(trans -> trans.withParameters(getStandardXsltParameters(config, corpusConfig)))
+                .mapError(ArticleUtil::metadataTransformError);
+        return stylesheet.map(trans -> {
+            boolean useCache = servlet.useCache(request) && servlet.getRenderedArticleCache().isEnabled();
+            int workers = Math.min(docIds.size(), Math.max(1, config.getInt(Keys.API_BATCH_CONCURRENCY)));
+            // The workers only use what was captured from the request up front (credentials in the api, useCache).
+            return getAll(docIds, workers,
+                    docId -> getTransformedMetadata(corpusConfig, config, trans, useCache, docId),
+                    worker -> submit("retrieving document metadata", worker, message -> new QueryException(HttpServletResponse.SC_GATEWAY_TIMEOUT, message)));
+        });
+    }
+
+    /**
+     * Get the result for every id, using at most the given number of workers that each take the next id until there are none left.
+     * A worker stops when its task passes its deadline (or is cancelled), so it doesn't keep going for a request that's done.
+     * Ids that no worker got to get a 504 error.
+     *
+     * @param submit starts a worker, see {@link UpstreamExecutor#submit(String, Supplier, Function)}
+     * @return the result for every id, in the same order as the ids
+     */
+    static <T> Map<String, Result<T, QueryException>> getAll(
+        List<String> ids,
+        int workers,
+        Function<String, Result<T, QueryException>> get,
+        Function<Supplier<Result<Boolean, QueryException>>, UpstreamExecutor.Stage<Boolean, QueryException>> submit
+    ) {
+        Map<String, Result<T, QueryException>> results = new ConcurrentHashMap<>();
+        AtomicInteger next = new AtomicInteger();
+        List<UpstreamExecutor.Stage<Boolean, QueryException>> running = new ArrayList<>();
+        for (int w = 0; w < workers; ++w) {
+            running.add(submit.apply(() -> {
+                for (int i; (i = next.getAndIncrement()) < ids.size(); ) {
+                    if (UpstreamExecutor.isExpired()) return Result.error(new QueryException(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Timed out before all documents were retrieved"));
+                    String id = ids.get(i);
+                    results.put(id, get.apply(id));
+                }
+                return Result.success(true);
+            }));
+        }
+        // Ids a worker didn't get to get its error.
+        QueryException timeout = null;
+        for (UpstreamExecutor.Stage<Boolean, QueryException> stage : running) {
+            timeout = stage.get().getError().orElse(timeout);
+        }
+        Result<T, QueryException> notReached = Result.error(timeout != null ? timeout : new QueryException(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Timed out before all documents were retrieved"));
+
+        Map<String, Result<T, QueryException>> ordered = new LinkedHashMap<>();
+        for (String id : ids) ordered.put(id, results.getOrDefault(id, notReached));
+        return ordered;
+    }
+
+    private Result<String, QueryException> getTransformedMetadata(WebsiteConfig corpusConfig, GlobalConfig config, XslTransformer stylesheet, boolean useCache, String docId) {
+        Optional<String> cacheKey = useCache ? Optional.of(cacheKey("metadata", corpusConfig.getCorpusId().orElseThrow(), docId, stylesheet.getVersion())) : Optional.empty();
+        Optional<String> cached = cacheKey.flatMap(servlet.getRenderedArticleCache()::get);
+        if (cached.isPresent()) return Result.success(cached.get());
+
+        return getDocumentMetadata(corpusConfig, config, docId)
+                .flatMap(md -> Result.success(md).mapWithErrorHandling(stylesheet::transform).mapError(ArticleUtil::metadataTransformError))
+                .tap(html -> cacheKey.ifPresent(key -> servlet.getRenderedArticleCache().put(key, html)));
+    }
+
+    /**
+     * Key for the transformed document in the cache.
+     * The transformation result depends on the document, the part of it we show, the hits we highlight, and the stylesheet.
+     * Empty if we shouldn't use the cache for this request (it contains credentials),
+     * or if the stylesheet can't be loaded (in which case the result is an error anyway).
+     */
+    private Optional<String> documentCacheKey(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config, String docId) {
+        if (!servlet.useCache(request) || !servlet.getRenderedArticleCache().isEnabled()) return Optional.empty();
+        return getArticleStylesheet(corpus, corpusMetadata, config).getResult().map(stylesheet -> cacheKey(
+                "contents",
+                corpus.getCorpusId().orElseThrow(),
+                docId,
+                stylesheet.getVersion(),
+                request.getParameter("field"),
+                request.getParameter("searchfield"),
+                request.getParameter("query"),
+                request.getParameter("pattgapdata"),
+                request.getParameter("wordstart"),
+                request.getParameter("wordend"),
+                request.getParameter("findhit")));
+    }
+
+    /** Key for the transformed metadata in the cache, see {@link #documentCacheKey(WebsiteConfig, CorpusConfig, GlobalConfig, String)} */
+    private Optional<String> metadataCacheKey(CorpusConfig corpus, WebsiteConfig corpusConfig, GlobalConfig config, String docId) {
+        if (!servlet.useCache(request) || !servlet.getRenderedArticleCache().isEnabled()) return Optional.empty();
+        return servlet.getStylesheet(corpus, "meta", api)
+                .map(trans -> trans.withParameters(getStandardXsltParameters(config, corpusConfig)))
+                .getResult()
+                .map(stylesheet -> cacheKey("metadata", corpusConfig.getCorpusId().orElseThrow(), docId, stylesheet.getVersion()));
+    }
+
+    /**
+     * <pre>
+     * After serving a page of a paginated document, retrieve and transform the next page (and the previous one, depending on {@link Keys#ARTICLE_PREFETCH})
+     * in the background, so it can be served from memory when the user pages on.
+     * This is best-effort: nothing happens for requests with credentials (the result is shared), when the cache is disabled,
+     * or when the background pool is busy (see {@link UpstreamExecutor#submitBackground(Runnable)}).
+     * </pre>
+     */
+    public void prefetchAdjacentPages(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config, String docId, PaginationInfo page) {
+        String mode = StringUtils.defaultString(config.get(Keys.ARTICLE_PREFETCH)).trim().toLowerCase();
+        BoundedCache<String, String> cache = servlet.getPrefetchedPageCache();
+        if (mode.equals("none") || !servlet.useCache(request) || !cache.isEnabled()) return;
+        Optional<XslTransformer> stylesheet = getArticleStylesheet(corpus, corpusMetadata, config).getResult();
+        if (stylesheet.isEmpty()) return;
+
+        List<PaginationInfo> pages = new ArrayList<>();
+        page.next().ifPresent(pages::add);
+        if (mode.equals("both")) page.previous().ifPresent(pages::add);
+
+        // The prefetch outlives the request, so take what we need from it now.
+        String corpusId = corpus.getCorpusId().orElseThrow();
+        ContentsQuery query = contentsQuery();
+        BlackLabApi anonymous = new BlackLabApi(null, config);
+        for (PaginationInfo p : pages) {
+            String key = prefetchKey(corpusId, docId, stylesheet.get(), query, p);
+            if (cache.contains(key) || !prefetching.add(key)) continue;
+            boolean submitted = UpstreamExecutor.getInstance().submitBackground(() -> {
+                try {
+                    documentContents(anonymous, corpusId, docId, query, p, BlackLabApi::getDocumentContents)
+                        .flatMap(c -> transformDocument(c, stylesheet.get()))
+                        .tap(html -> cache.put(key, html));
+                } finally {
+                    prefetching.remove(key);
+                }
+            });
+            if (!submitted) prefetching.remove(key);
+        }
+    }
+
+    /** The page, if it was prefetched. It's removed from the prefetch cache, as it's no longer ahead of time. */
+    private Optional<String> takePrefetched(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config, String docId, PaginationInfo page) {
+        BoundedCache<String, String> cache = servlet.getPrefetchedPageCache();
+        if (!servlet.useCache(request) || !cache.isEnabled()) return Optional.empty();
+        Optional<String> key = getArticleStylesheet(corpus, corpusMetadata, config).getResult()
+                .map(stylesheet -> prefetchKey(corpus.getCorpusId().orElseThrow(), docId, stylesheet, contentsQuery(), page));
+        Optional<String> html = key.flatMap(cache::get);
+        if (html.isPresent()) cache.invalidate(key.get());
+        return html;
+    }
+
+    /** Unlike {@link #documentCacheKey}, this uses the page as sent to BlackLab, so it doesn't matter how the client asks for it (e.g. through findhit). */
+    private static String prefetchKey(String corpusId, String docId, XslTransformer stylesheet, ContentsQuery q, PaginationInfo page) {
+        return cacheKey(
+                "page",
+                corpusId,
+                docId,
+                stylesheet.getVersion(),
+                q.field.orElse(null),
+                q.searchfield.orElse(null),
+                q.query.orElse(null),
+                q.pattgapdata.orElse(null),
+                page.blacklabPageStart.map(Object::toString).orElse(null),
+                page.blacklabPageEnd.map(Object::toString).orElse(null));
+    }
+
+    private static String cacheKey(String... parts) {
+        return Arrays.stream(parts).map(StringUtils::defaultString).collect(Collectors.joining("\0"));
     }
 
     private Result<String, QueryException> transformDocument(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config, Result<String, QueryException> contents) {
         return contents.flatMap(c -> {
             // If the document contents aren't xml, don't bother with the transformer.
-            if (!XML_TAG_PATTERN.matcher(c).find()) {
-                return Result.success("<pre>" + StringUtils.replaceEach(c,
-                        new String[]{"<hl>", "</hl>"},
-                        new String[]{"<span class=\"hl\">", "</span>"}
-                ) + "</pre>");
-            }
+            if (!looksLikeXml(c)) return Result.success(plainText(c));
 
             // we managed to get the contents, and they're definitely xml.
             // Load the transformer.
-            return servlet.getStylesheet(corpusMetadata, "article", request, response)
-                    .tap(trans -> this.addStandardXsltParameters(trans, config, corpus))
+            return getArticleStylesheet(corpus, corpusMetadata, config)
                     .mapWithErrorHandling(trans -> trans.transform(c))
-                    .mapError(e -> new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while transforming document contents: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e)));
+                    .mapError(ArticleUtil::transformError);
         });
     }
 
+    /** Like {@link #transformDocument(WebsiteConfig, CorpusConfig, GlobalConfig, Result)}, with an already loaded stylesheet. */
+    private static Result<String, QueryException> transformDocument(String contents, XslTransformer stylesheet) {
+        if (!looksLikeXml(contents)) return Result.success(plainText(contents));
+        try {
+            return Result.success(stylesheet.transform(contents));
+        } catch (TransformerException e) {
+            return Result.error(transformError(e));
+        }
+    }
+
+    static String plainText(String contents) {
+        // The highlight spans make the result a little longer, this is usually enough to avoid growing the buffer.
+        StringWriter out = new StringWriter(contents.length() + contents.length() / 16 + 16);
+        try {
+            plainText(new StringReader(contents), out);
+        } catch (IOException e) {
+            // can't happen for strings
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
+    /** Write plain text document contents as html, replacing the hl tags inserted by BlackLab with spans. Reads the contents in chunks, so never holds the whole document. */
+    private static void plainText(Reader contents, Writer out) throws IOException {
+        out.write("<pre>");
+        HighlightingWriter hl = new HighlightingWriter(out);
+        char[] chunk = new char[HighlightingWriter.CHUNK_SIZE];
+        for (int n; (n = contents.read(chunk)) != -1; ) hl.write(chunk, 0, n);
+        hl.finish();
+        out.write("</pre>");
+    }
+
+    private static QueryException transformError(Exception e) {
+        return new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while transforming document contents: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e));
+    }
+
+    /**
+     * Start loading the article stylesheet in the background.
+     * It doesn't depend on the document, so it can be loaded while the document is being retrieved.
+     * Does nothing if already started.
+     */
+    public void preloadArticleStylesheet(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config) {
+        if (articleStylesheet == null) {
+            articleStylesheet = submit("loading the article stylesheet", () -> loadArticleStylesheet(corpus, corpusMetadata, config), TransformerException::new);
+        }
+    }
+
+    private Result<XslTransformer, TransformerException> getArticleStylesheet(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config) {
+        return articleStylesheet != null ? articleStylesheet.get() : loadArticleStylesheet(corpus, corpusMetadata, config);
+    }
+
+    private Result<XslTransformer, TransformerException> loadArticleStylesheet(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config) {
+        return servlet.getStylesheet(corpusMetadata, "article", api)
+                .map(trans -> trans.withParameters(getStandardXsltParameters(config, corpus)));
+    }
+
+    /** Does the document contain any xml tags (not counting the hl tags inserted by BlackLab)? Only the start of the document is inspected, see {@link XmlSniffer}. */
+    static boolean looksLikeXml(CharSequence contents) {
+        return XmlSniffer.looksLikeXml(contents);
+    }
+
+    /**
+     * Document contents that are still being received from BlackLab.
+     * {@link #writeTo(Writer)} transforms them into html while they're coming in.
+     * Only the first {@link #SNIFF_LENGTH} characters are inspected to decide whether the document is xml.
+     */
+    public class DocumentStream implements Closeable {
+        /** Null if the document was already in the cache. */
+        private final UpstreamClient.Connection connection;
+        private final WebsiteConfig corpus;
+        private final CorpusConfig corpusMetadata;
+        private final GlobalConfig config;
+        /** Where to store the transformed document after writing it. */
+        private final Optional<String> cacheKey;
+        /** The transformed document, if it was already in the cache. */
+        private final String cached;
+
+        private DocumentStream(UpstreamClient.Connection connection, WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config, Optional<String> cacheKey) {
+            this.connection = connection;
+            this.corpus = corpus;
+            this.corpusMetadata = corpusMetadata;
+            this.config = config;
+            this.cacheKey = cacheKey;
+            this.cached = null;
+        }
+
+        private DocumentStream(String cached) {
+            this.connection = null;
+            this.corpus = null;
+            this.corpusMetadata = null;
+            this.config = null;
+            this.cacheKey = Optional.empty();
+            this.cached = cached;
+        }
+
+        /**
+         * Read the document from BlackLab, and write the transformed contents.
+         * The stream is closed afterwards.
+         *
+         * @throws IOException when reading or writing fails
+         * @throws QueryException when the stylesheet could not be loaded or the transformation failed. Some output may already have been written.
+         */
+        public void writeTo(Writer out) throws IOException, QueryException {
+            if (cached != null) {
+                out.write(cached);
+                return;
+            }
+            if (cacheKey.isPresent()) {
+                // Keep a copy of what we write for the cache, unless the document turns out to be huge.
+                CapturingWriter capture = new CapturingWriter(out, servlet.getRenderedArticleCache().getStats().maxWeight / 16);
+                writeTransformed(capture);
+                capture.getCaptured().ifPresent(html -> servlet.getRenderedArticleCache().put(cacheKey.get(), html));
+            } else {
+                writeTransformed(out);
+            }
+        }
+
+        private void writeTransformed(Writer out) throws IOException, QueryException {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getBody(), StandardCharsets.UTF_8), SNIFF_LENGTH)) {
+                reader.mark(SNIFF_LENGTH);
+                char[] prefix = new char[SNIFF_LENGTH];
+                int length = 0;
+                for (int n; length < prefix.length && (n = reader.read(prefix, length, prefix.length - length)) != -1; ) {
+                    length += n;
+                }
+                reader.reset();
+
+                if (!looksLikeXml(CharBuffer.wrap(prefix, 0, length))) {
+                    plainText(reader, out);
+                    return;
+                }
+
+                getArticleStylesheet(corpus, corpusMetadata, config).getOrThrow().streamTransform(reader, out);
+            } catch (TransformerException | RuntimeException e) {
+                if (e instanceof ReturnToClientException) throw (ReturnToClientException) e;
+                throw new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while transforming document contents: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e));
+            } finally {
+                close();
+            }
+        }
+
+        /** The transformed document, if it was already in the cache. If so, writeTo just writes this. */
+        public Optional<String> getCachedContents() {
+            return Optional.ofNullable(cached);
+        }
+
+        @Override
+        public void close() {
+            if (connection != null) connection.close();
+        }
+    }
+
+    /**
+     * Replaces the hl tags BlackLab inserts into plain text documents with highlight spans, while writing.
+     * Tags may be split over multiple writes, at most a few characters are held back until it's clear whether they're a tag.
+     * Call {@link #finish()} when done, to write anything still held back. Doesn't close the underlying writer.
+     */
+    private static class HighlightingWriter extends FilterWriter {
+        static final int CHUNK_SIZE = 8192;
+        private static final String OPEN = "<hl>";
+        private static final String CLOSE = "</hl>";
+        private static final String OPEN_REPLACEMENT = "<span class=\"hl\">";
+        private static final String CLOSE_REPLACEMENT = "</span>";
+
+        /** The start of a possible tag, seen but not yet written. */
+        private final char[] partial = new char[CLOSE.length()];
+        private int matched = 0;
+
+        HighlightingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            write(new char[] { (char) c }, 0, 1);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            char[] chunk = new char[Math.min(len, CHUNK_SIZE)];
+            for (int end = off + len; off < end; off += chunk.length) {
+                int n = Math.min(chunk.length, end - off);
+                str.getChars(off, off + n, chunk, 0);
+                write(chunk, 0, n);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int end = off + len;
+            // Start of the characters that can be written as-is.
+            int run = off;
+            for (int i = off; i < end; ++i) {
+                char c = cbuf[i];
+                if (matched == 0) {
+                    if (c != '<') continue;
+                    out.write(cbuf, run, i - run);
+                    partial[matched++] = c;
+                    run = i + 1;
+                    continue;
+                }
+
+                partial[matched++] = c;
+                run = i + 1;
+                if (is(OPEN)) {
+                    out.write(OPEN_REPLACEMENT);
+                    matched = 0;
+                } else if (is(CLOSE)) {
+                    out.write(CLOSE_REPLACEMENT);
+                    matched = 0;
+                } else if (!startsWith(OPEN) && !startsWith(CLOSE)) {
+                    // Not a tag after all. The last character may start a tag of its own, so look at it again.
+                    out.write(partial, 0, matched - 1);
+                    matched = 0;
+                    run = i--;
+                }
+            }
+            if (matched == 0) out.write(cbuf, run, end - run);
+        }
+
+        private boolean is(String tag) {
+            return matched == tag.length() && startsWith(tag);
+        }
+
+        private boolean startsWith(String tag) {
+            if (matched > tag.length()) return false;
+            for (int i = 0; i < matched; ++i) {
+                if (partial[i] != tag.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        /** Write the start of a tag that was never completed. */
+        void finish() throws IOException {
+            out.write(partial, 0, matched);
+            matched = 0;
+        }
+    }
+
+    /** Passes everything through, keeping a copy of at most maxLength characters. */
+    private static class CapturingWriter extends FilterWriter {
+        private final long maxLength;
+        private StringBuilder captured = new StringBuilder();
+
+        CapturingWriter(Writer out, long maxLength) {
+            super(out);
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            if (captured != null && captured.length() < maxLength) captured.append((char) c);
+            else captured = null;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            if (captured != null && captured.length() + len <= maxLength) captured.append(cbuf, off, len);
+            else captured = null;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            if (captured != null && captured.length() + len <= maxLength) captured.append(str, off, off + len);
+            else captured = null;
+        }
+
+        /** @return everything that was written, or empty if it was too long. */
+        Optional<String> getCaptured() {
+            return Optional.ofNullable(captured).map(StringBuilder::toString);
+        }
+    }
+
     public Result<String, QueryException> transformMetadata(CorpusConfig corpus, WebsiteConfig corpusConfig, GlobalConfig config, Result<String, QueryException> metadata) {
         return metadata.flatMap(md ->
-            servlet.getStylesheet(corpus,"meta",request, response)
-            .tap(trans -> this.addStandardXsltParameters(trans, config, corpusConfig))
+            servlet.getStylesheet(corpus, "meta", api)
+            .map(trans -> trans.withParameters(getStandardXsltParameters(config, corpusConfig)))
             .mapWithErrorHandling(trans -> trans.transform(md))
-            .mapError(e -> new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while transforming document metadata contents: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e)))
+            .mapError(ArticleUtil::metadataTransformError)
         );
     }
 
+    private static QueryException metadataTransformError(Exception e) {
+        return new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while transforming document metadata contents: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e));
+    }
+
+    /** Like {@link #transformMetadata(CorpusConfig, WebsiteConfig, GlobalConfig, Result)}, but in the background. */
+    public UpstreamExecutor.Stage<String, QueryException> transformMetadataAsync(CorpusConfig corpus, WebsiteConfig corpusConfig, GlobalConfig config, Result<String, QueryException> metadata) {
+        return submit("transforming the document metadata", () -> transformMetadata(corpus, corpusConfig, config, metadata),
+                message -> new QueryException(HttpServletResponse.SC_GATEWAY_TIMEOUT, message));
+    }
+
+    private <R, E extends Exception> UpstreamExecutor.Stage<R, E> submit(String description, Supplier<Result<R, E>> task, Function<String, E> onTimeout) {
+        UpstreamExecutor.Stage<R, E> stage = UpstreamExecutor.getInstance().submit(description, task, onTimeout);
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Wait for any background work for this request to finish, or until its deadline. Results that weren't used are discarded.
+     * Work that's past its deadline is cancelled, though it may take a moment to stop (e.g. while it waits for BlackLab, see {@link UpstreamExecutor}).
+     * That's harmless, as it doesn't use the request or response.
+     */
+    @Override
+    public void close() {
+        for (UpstreamExecutor.Stage<?, ?> stage : stages) {
+            try {
+                stage.get();
+            } catch (RuntimeException e) {
+                // nobody asked for the result, so nobody's interested in the error either.
+            }
+        }
+        stages.clear();
+    }
+
     public static Optional<String> getParameter(String name, HttpServletRequest request) {
         return Optional.ofNullable(request.getParameter(name)).map(StringUtils::trimToNull);
     }
@@ -199,6 +796,38 @@ public class ArticleUtil {
         });
     }
 
+    /**
+     * Like {@link #getPaginationInfo(WebsiteConfig, HttpServletRequest, Result)}, but the document length is looked up in (and added to) the {@link DocumentLengthIndex},
+     * so the metadata only needs to be retrieved the first time a document is paginated.
+     *
+     * @param docMetadata the document metadata if it was already retrieved, otherwise it's retrieved only if needed.
+     */
+    public PaginationInfo paginate(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config, String docId, Result<String, QueryException> docMetadata) {
+        // The index is shared by all users, so it must not tell anyone about documents only some of them may see.
+        Optional<DocumentLengthIndex> lengths = Optional.of(servlet.getDocumentLengths()).filter(__ -> servlet.useCache(request));
+        Optional<String> field = getParameter("field", request);
+        if (docMetadata.isEmpty()) {
+            // BlackLab only needs the page boundaries, which don't depend on the length when pagination is disabled.
+            if (corpus.getPageSize().isEmpty()) return getPaginationInfo(corpus, request, Optional.empty());
+            Optional<Integer> known = lengths.flatMap(l -> l.get(corpusMetadata, docId, field));
+            if (known.isPresent()) return getPaginationInfo(corpus, request, known);
+            docMetadata = getDocumentMetadata(corpus, config, docId);
+        }
+
+        PaginationInfo pagination = getPaginationInfo(corpus, request, docMetadata);
+        if (pagination.documentLength != Integer.MAX_VALUE) lengths.ifPresent(l -> l.put(corpusMetadata, docId, field, pagination.documentLength));
+        return pagination;
+    }
+
+    private static PaginationInfo getPaginationInfo(WebsiteConfig corpusConfig, HttpServletRequest request, Optional<Integer> documentLength) {
+        return new PaginationInfo(
+                corpusConfig.getPageSize(),
+                documentLength,
+                getIntParameter("wordstart", request),
+                getIntParameter("wordend", request),
+                getIntParameter("findhit", request));
+    }
+
     public static PaginationInfo getPaginationInfo(WebsiteConfig corpusConfig, HttpServletRequest request, Result<String, QueryException> documentMetadata) {
         Optional<Integer> pageSize = corpusConfig.getPageSize();
         Optional<Integer> pageStart = getIntParameter("wordstart", request);
@@ -1,20 +1,18 @@
 package nl.inl.corpuswebsite.utils;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
-import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
@@ -173,27 +171,20 @@ class URLBuilder<T extends URLBuilder<T>> {
                 + (hash != null ? "#" + URLEncoder.encode(hash, StandardCharsets.UTF_8) : "");
     }
 
-    public HttpURLConnection connect() throws QueryException {
-        try {
-            URL urlObj = new URL(getUrl());
-            HttpURLConnection connection = (HttpURLConnection) urlObj.openConnection();
-            connection.setInstanceFollowRedirects(true);
-            connection.setRequestMethod(method);
-
-            if (headers != null) {
-                for (Entry<String, String> header: headers.entrySet()) {
-                    connection.addRequestProperty(header.getKey(), header.getValue());
-                }
-                if (cookies != null) {
-                    connection.addRequestProperty("Cookie", cookies.entrySet().stream().map(c -> c.getKey() + "=" + c.getValue()).collect(Collectors.joining(";")));
-                }
-            }
+    /**
+     * Open a connection to the url, using the {@link UpstreamClient}.
+     * The returned connection must always be closed, so the connection can be reused.
+     */
+    public UpstreamClient.Connection connect() throws QueryException {
+        return connect(getUrl());
+    }
 
-            connection.connect();
-            return connection;
-        } catch (IOException e) {
-            throw QueryException.wrap(e, "Error connecting to url " + url);
-        }
+    /** Open a connection to a different url, keeping the method, headers and cookies. */
+    protected UpstreamClient.Connection connect(String fullUrl) throws QueryException {
+        Map<String, String> h = new HashMap<>();
+        if (headers != null) h.putAll(headers);
+        if (cookies != null) h.put("Cookie", cookies.entrySet().stream().map(c -> c.getKey() + "=" + c.getValue()).collect(Collectors.joining(";")));
+        return UpstreamClient.getInstance().open(fullUrl, method, h);
     }
 }
 
@@ -202,42 +193,47 @@ class URLBuilder<T extends URLBuilder<T>> {
  * The request should copy the http authorization header from the provided request.
  *
  * Has some special logic for basic auth.
- * When the response to the request we're trying to make here indicates basic auth is required, and the passed in request (from our client)
- * doesn't contain basic auth, the response is modified to add the www-authorization header prior to throwing a ReturnToClientException that will return the 401 to the client.
+ * When the response to the request we're trying to make here indicates basic auth is required, and the request is made on behalf of a client
+ * (who didn't pass basic auth), a ReturnToClientException is thrown that will return the 401 with the www-authenticate header to the client.
  * Then the client's browser will prompt for credentials, and the request will be retried with the credentials.
  * After this our request should succeed, and the client will be able to access the resource.
  *
  * For more advanced authentication methods, no special logic exists, no ReturnToClientException is thrown, and the 401/403 is simply returned to the caller.
  */
 public class AuthRequest extends URLBuilder<AuthRequest> {
-    /** May be null */
-    private final HttpServletRequest request;
-    /** May be null. */
-    private final HttpServletResponse response;
+    /**
+     * Whether the request is made on behalf of a client, who can be asked to log in.
+     * We never hold on to the client's request or response, as we may run on another thread (see {@link UpstreamExecutor}).
+     */
+    private final boolean forClient;
+    /** Label for the request in the upstream metrics, see {@link #endpoint(String)}. */
+    private String endpoint = "other";
 
-    private String method = "GET";
+    /**
+     * Identical requests that are in flight at the same time are made only once, and share the result (see {@link #request(boolean)}).
+     * Nothing is cached, the entry is removed as soon as the request completes.
+     */
+    private static final LoadingCache<String, Result<String, QueryException>> inFlight = new LoadingCache<>(__ -> 0);
 
     /** Standard request without authentication support. We don't need the config if we're not going to communicate to the client. */
     public AuthRequest(String url) {
         super(url);
-        this.request = null;
-        this.response = null;
+        this.forClient = false;
     }
 
-    public AuthRequest(HttpServletRequest request, HttpServletResponse response) {
+    /** @param forClient whether the request is made on behalf of a client, see {@link #request(boolean)} */
+    public AuthRequest(boolean forClient) {
         super();
-        this.request = request;
-        this.response = response;
-    }
-
-    public AuthRequest(HttpServletRequest request, HttpServletResponse response, String url) {
-        super(url);
-        this.request = request;
-        this.response = response;
+        this.forClient = forClient;
     }
 
-    public AuthRequest method(String method) {
-        this.method = method;
+    /**
+     * Name the operation this request is for, e.g. {@link BlackLabApi#DOCUMENT_CONTENTS}.
+     * Used in the upstream metrics, and to apply the concurrency limit for the operation (see {@link UpstreamGuard}).
+     * Should be a fixed name and not contain the url, or every corpus/document would get its own metric.
+     */
+    public AuthRequest endpoint(String endpoint) {
+        this.endpoint = endpoint;
         return this;
     }
 
@@ -252,14 +248,77 @@ public class AuthRequest extends URLBuilder<AuthRequest> {
      *
      * @param hardFailOnMissingAuth iff true and the upstream returns a 401 not authorized, it will be forwarded as-is to the client. If false, a regular 401 QueryException will be returned in the Result.
      *
-     * @throws ReturnToClientException when authentication is required but not provided. The response is modified to add the www-authorization header prior to throwing.
+     * Concurrent identical GET requests (same url, query, headers and cookies, so also the same credentials) are coalesced:
+     * only one of them is sent, and they all get its result. Within a task on the {@link UpstreamExecutor}, waiting for the result
+     * of another request is limited to the task's deadline, after which a 504 error is returned.
+     *
+     * @throws ReturnToClientException when authentication is required but not provided, carrying the www-authenticate header for the client.
      */
     public Result<String, QueryException> request(boolean hardFailOnMissingAuth) {
+        if (!"GET".equalsIgnoreCase(method)) return fetch(hardFailOnMissingAuth);
+        // When the request that's actually sent throws (i.e. a ReturnToClientException), the others are sent separately,
+        // so they all get the exception in their own thread.
+        return inFlight.get(getCoalescingKey(hardFailOnMissingAuth), __ -> fetch(hardFailOnMissingAuth),
+                UpstreamExecutor.limitToDeadline(0),
+                __ -> Result.error(new QueryException(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Timed out while waiting for " + url)));
+    }
+
+    /** Number of requests that shared the result of an identical request in flight, instead of being sent. */
+    public static long getCoalescedCount() {
+        return inFlight.getStats().hits;
+    }
+
+    /** Identifies the request. It's hashed as a whole so credentials aren't kept around in plain text, they may be in the url too. */
+    private String getCoalescingKey(boolean hardFailOnMissingAuth) {
+        StringBuilder key = new StringBuilder(getUrl());
+        // Only requests for a client can result in a login prompt, so don't mix them with the others.
+        key.append('\0').append(hardFailOnMissingAuth && forClient).append('\0');
+        if (headers != null) new TreeMap<>(headers).forEach((k, v) -> key.append(k.toLowerCase()).append(':').append(v).append('\n'));
+        key.append('\0');
+        if (cookies != null) new TreeMap<>(cookies).forEach((k, v) -> key.append(k).append('=').append(v).append('\n'));
+        return PrincipalCache.principalOf(key.toString());
+    }
+
+    private Result<String, QueryException> fetch(boolean hardFailOnMissingAuth) {
+        return stream(hardFailOnMissingAuth).flatMap(conn -> {
+            try (conn) {
+                return decode(conn);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #request(boolean)}, but doesn't read the response body if the request was successful.
+     * Instead the open connection is returned, so the body can be streamed to wherever it needs to go.
+     * The caller is responsible for closing the connection.
+     * When the request was unsuccessful, the error is returned and the connection is already closed.
+     *
+     * @param hardFailOnMissingAuth see {@link #request(boolean)}
+     * @throws ReturnToClientException see {@link #request(boolean)}
+     */
+    public Result<UpstreamClient.Connection, QueryException> stream(boolean hardFailOnMissingAuth) {
+        UpstreamGuard.Permit permit;
+        try {
+            permit = UpstreamGuard.getInstance().acquire(endpoint);
+        } catch (UpstreamGuard.RejectedException e) {
+            Metrics.getInstance().counter("upstream_rejected_total", "Upstream (BlackLab) requests that were not made because of a concurrency limit or the circuit breaker.", "endpoint", endpoint).inc();
+            return Result.error(e);
+        }
+
+        UpstreamClient.Connection r = null;
+        long start = System.nanoTime();
+        String status = "error";
+        boolean failed = true;
+        // Whether BlackLab had anything to do with the outcome, only then does it count for the circuit breaker.
+        boolean upstream = true;
+        boolean handedOff = false;
         try {
-            HttpURLConnection r = connect();
+            r = connect();
             int redirects = 0;
             while (redirects < 10) {
                 int code = r.getResponseCode();
+                status = Integer.toString(code);
+                failed = code < 0 || code >= 500;
                 if (code == -1)
                     return Result.error(new QueryException(-1, "Unexpected response from url " + url));
 
@@ -268,11 +327,9 @@ public class AuthRequest extends URLBuilder<AuthRequest> {
                 if (code >= 300 && code < 400) {
                     String newUrl = r.getHeaderField("location");
                     if (newUrl != null && !newUrl.isEmpty()) {
-                        r = new URLBuilder<>(newUrl) // should already contain query and hash
-                                .method(this.method)
-                                .headers(this.headers)
-                                .cookies(this.cookies)
-                                .connect();
+                        // release our connection before opening the next one, or we might deadlock on the pool.
+                        r.close();
+                        r = connect(newUrl); // should already contain query and hash
                         ++redirects;
                         continue;
                     }
@@ -281,18 +338,36 @@ public class AuthRequest extends URLBuilder<AuthRequest> {
                 // in all cases this request is performed on behalf of a user's request to this application
                 // therefor, if this request fails because of missing authentication, we should forward the request for authentication to the client.
                 // if there is a www-authenticate header, we should forward it to the user
-                if (hardFailOnMissingAuth && r.getHeaderField("www-authenticate") != null) {
-                    r.getHeaderFields().forEach((k, v) -> v.forEach(w -> response.addHeader(k, w)));
-                    InputStream s = r.getErrorStream() != null ? r.getErrorStream() : r.getInputStream();
-                    String content = IOUtils.toString(s, "utf-8");
-                    throw new ReturnToClientException(code, content);
+                if (hardFailOnMissingAuth && forClient && r.getHeaderField("www-authenticate") != null) {
+                    Map<String, List<String>> headers = new HashMap<>(r.getHeaderFields());
+                    headers.remove(null); // the status line
+                    String content = IOUtils.toString(r.getBody(), "utf-8");
+                    throw new ReturnToClientException(code, content, headers);
                 }
 
-                return decode(r);
+                if (r.hasErrorBody() || code < 200 || code >= 300) {
+                    return Result.error(decode(r).getError().orElseThrow()); // decode always returns an error in these cases
+                }
+
+                UpstreamClient.Connection success = r;
+                r = null; // caller closes it now
+                success.onClose(permit::release); // still in flight until the body has been read
+                handedOff = true;
+                return Result.success(success);
             }
             return Result.error(new QueryException(HttpServletResponse.SC_BAD_GATEWAY, "Too many redirects"));
         } catch (IOException | QueryException e) {
+            // Not BlackLab's fault: we gave up waiting for a connection of our own, or the task making the request ran out of time.
+            upstream = !(e instanceof UpstreamClient.PoolException) && !UpstreamExecutor.isExpired();
             return Result.error(QueryException.wrap(e));
+        } finally {
+            if (r != null) r.close();
+            // Time until the response headers are in, reading the body is up to the caller.
+            if (upstream) permit.record(failed, System.nanoTime() - start);
+            if (!handedOff) permit.release();
+            Metrics metrics = Metrics.getInstance();
+            metrics.histogram("upstream_request_duration_seconds", "Time until the response headers of upstream (BlackLab) requests were received.", "endpoint", endpoint).observeSince(start);
+            metrics.counter("upstream_responses_total", "Responses from upstream (BlackLab) by http status, error if there was no response.", "endpoint", endpoint, "status", status).inc();
         }
     }
 
@@ -301,26 +376,28 @@ public class AuthRequest extends URLBuilder<AuthRequest> {
      * Returns a queryException containing the httpcode and body if it's an error.
      * If an ioerror occurs, it's wrapped in a queryexception with code 500.
      *
+     * The body is always read completely, so the connection can be kept alive. The connection is not closed.
+     *
      * @param conn the connection holding the response.
      *
      * @return the result of the above.
      */
-    protected static Result<String, QueryException> decode(HttpURLConnection conn) {
+    protected static Result<String, QueryException> decode(UpstreamClient.Connection conn) {
         try {
             int code = conn.getResponseCode();
-            if (conn.getErrorStream() != null) {
-                String body = StringUtils.join(IOUtils.readLines(conn.getErrorStream(), "utf-8"), "\n");
+            if (conn.hasErrorBody()) {
+                String body = StringUtils.join(IOUtils.readLines(conn.getBody(), "utf-8"), "\n");
                 return Result.error(new QueryException(code, body));
             } else if (code < 200 || code >= 300) {
                 return Result.error(new QueryException(code, "Unexpected response (http " + code + ") from url " + conn.getURL()));
             } else if (code == 204) {
                 return Result.success("");
             } else {
-                String body = StringUtils.join(IOUtils.readLines(conn.getInputStream(), "utf-8"), "\n");
+                String body = StringUtils.join(IOUtils.readLines(conn.getBody(), "utf-8"), "\n");
                 return Result.success(body);
             }
         } catch (IOException e) {
             return Result.error(QueryException.wrap(e));
         }
     }
-}
\ No newline at end of file
+}
@@ -1,66 +1,105 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.logging.Logger;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 
 /**
  * Helper class for talking to BlackLab.
  * Is initialized with the BlackLab server URL once on startup.
- * Has methods for getting various things from BlackLab, with the ability to copy basic auth headers from the client request (which is why it needs the request and response objects).
+ * Has methods for getting various things from BlackLab, with the ability to copy basic auth headers from the client request.
+ * The credentials are read from the request when this is created, the request itself is not kept.
+ * So create it on the request's own thread, after which it can be used from other threads (see {@link UpstreamExecutor}), even after the request is done.
+ * The request may be null for requests that are not made on behalf of a client (e.g. background refreshes), no credentials are sent then.
  */
 public class BlackLabApi {
+	/** Names of the operations, for the metrics and {@link UpstreamGuard}. */
+	public static final String CORPUS_INFO = "corpus-info";
+	public static final String DOCUMENT_METADATA = "document-metadata";
+	public static final String DOCUMENT_CONTENTS = "document-contents";
+	public static final String STYLESHEET = "stylesheet";
+
 	protected static String blsUrl;
 	
-	protected final HttpServletRequest request;
-	protected final HttpServletResponse response;
+	/** Whether we're working on behalf of a client, see {@link AuthRequest#AuthRequest(boolean)} */
+	protected final boolean forClient;
+	/** The credential to pass on to BlackLab, read from the client's request. */
+	protected final Optional<String> credential;
 	protected final GlobalConfig config;
 	
-	public BlackLabApi(HttpServletRequest clientRequest, HttpServletResponse clientResponse, GlobalConfig config) {
-		this.request = clientRequest;
-		this.response = clientResponse;
+	public BlackLabApi(HttpServletRequest clientRequest, GlobalConfig config) {
+		this.forClient = clientRequest != null;
+		this.credential = Optional.ofNullable(clientRequest)
+				.flatMap(r -> readRequestParameter(r, config.get(Keys.AUTH_SOURCE_TYPE), config.get(Keys.AUTH_SOURCE_NAME)));
 		this.config = config;
 	}
 
-	private AuthRequest authRequest() {
-		var req = new AuthRequest(request, response);
-
-		readRequestParameter(request, config.get(Keys.AUTH_SOURCE_TYPE), config.get(Keys.AUTH_SOURCE_NAME))
-				.ifPresent(auth -> setParameter(req, config.get(Keys.AUTH_TARGET_TYPE), config.get(Keys.AUTH_TARGET_NAME), auth));
+	/** The credential passed on to BlackLab, empty if the client didn't provide one. */
+	public Optional<String> getCredential() {
+		return credential;
+	}
 
+	/** @param endpoint name of the operation, see {@link AuthRequest#endpoint(String)} */
+	private AuthRequest authRequest(String endpoint) {
+		var req = new AuthRequest(forClient).endpoint(endpoint);
+		credential.ifPresent(auth -> setParameter(req, config.get(Keys.AUTH_TARGET_TYPE), config.get(Keys.AUTH_TARGET_NAME), auth));
 		return req;
 	}
 
 	public Result<String, QueryException> getDocumentMetadata(String corpus, String documentId) {
-		return authRequest()
+		return authRequest(DOCUMENT_METADATA)
 				.url(blsUrl, corpus, "docs", documentId)
 				.query("outputformat", "xml")
 				.request(true);
 	}
 
 	public Result<CorpusConfig, Exception> getCorpusConfig(String corpus) {
-		return authRequest()
+		return authRequest(CORPUS_INFO)
 				.url(blsUrl, corpus)
 				.query("outputformat", "xml")
 				.request(true)
-				.flatMapWithErrorHandling(xml ->
-						authRequest()
+				.mapWithErrorHandling(xml -> new CorpusConfig(corpus, xml, ""))
+				.flatMap(partial ->
+						authRequest(CORPUS_INFO)
 							.url(blsUrl, corpus)
 							.query("outputformat", "json")
-							.query("listvalues", new CorpusConfig(corpus, xml, "").getListValues())
+							.query("listvalues", partial.getListValues())
 							.request(true)
-							.mapWithErrorHandling(json -> new CorpusConfig(corpus, xml, json))
+							.map(partial::withJson)
+							.mapError(e -> (Exception) e)
 				);
 	}
 
+	/** Ids of the corpora BlackLab reports (those visible without credentials, when not made on behalf of a client). */
+	public Result<List<String>, QueryException> getCorpora() {
+		return authRequest(CORPUS_INFO)
+				.url(blsUrl, "")
+				.query("outputformat", "json")
+				.request(true)
+				.flatMap(json -> {
+					try {
+						JsonObject root = JsonParser.parseString(json).getAsJsonObject();
+						// BlackLab 4 lists "corpora", older versions "indices".
+						JsonObject corpora = root.has("corpora") ? root.getAsJsonObject("corpora") : root.getAsJsonObject("indices");
+						return Result.success(corpora == null ? List.of() : new ArrayList<>(corpora.keySet()));
+					} catch (RuntimeException e) {
+						return Result.error(QueryException.wrap(e, "Unexpected response listing corpora from BlackLab"));
+					}
+				});
+	}
+
 	public Result<String, QueryException> getStylesheet(String formatName) {
-		return authRequest()
+		return authRequest(STYLESHEET)
 				.url(blsUrl, "input-formats", formatName, "xslt")
 				.request(true);
 	}
@@ -74,7 +113,37 @@ public class BlackLabApi {
 			Optional<String> pattgapdata,
 			Optional<Integer> pageStart,
 			Optional<Integer> pageEnd) {
-		return authRequest()
+		return documentContentsRequest(corpus, docId, field, searchfield, blacklabQuery, pattgapdata, pageStart, pageEnd)
+				.request(true);
+	}
+
+	/**
+	 * Like {@link #getDocumentContents(String, String, Optional, Optional, Optional, Optional, Optional, Optional)},
+	 * but returns the open connection instead of reading the contents into memory. The caller must close the connection.
+	 */
+	public Result<UpstreamClient.Connection, QueryException> streamDocumentContents(
+			String corpus,
+			String docId,
+			Optional<String> field,
+			Optional<String> searchfield,
+			Optional<String> blacklabQuery,
+			Optional<String> pattgapdata,
+			Optional<Integer> pageStart,
+			Optional<Integer> pageEnd) {
+		return documentContentsRequest(corpus, docId, field, searchfield, blacklabQuery, pattgapdata, pageStart, pageEnd)
+				.stream(true);
+	}
+
+	private AuthRequest documentContentsRequest(
+			String corpus,
+			String docId,
+			Optional<String> field,
+			Optional<String> searchfield,
+			Optional<String> blacklabQuery,
+			Optional<String> pattgapdata,
+			Optional<Integer> pageStart,
+			Optional<Integer> pageEnd) {
+		return authRequest(DOCUMENT_CONTENTS)
 				.url(blsUrl, corpus, "docs", docId, "contents")
 				.query("field", field)
 				.query("searchfield", searchfield)
@@ -82,8 +151,7 @@ public class BlackLabApi {
 				.query("pattgapdata", pattgapdata)
 				.query("wordstart", pageStart.map(Object::toString))
 				.query("wordend", pageEnd.map(Object::toString))
-				.query("escapexmlfragments", "false")
-				.request(true);
+				.query("escapexmlfragments", "false");
 	}
 	
 	public static void setBlsUrl(String url) {
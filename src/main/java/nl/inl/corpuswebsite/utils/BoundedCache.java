@@ -0,0 +1,144 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * <pre>
+ * A least-recently-used cache, bounded by the total weight (usually the approximate size in bytes) of its values.
+ * When adding a value would exceed the max weight, the least recently used entries are evicted until it fits.
+ * Values heavier than the max weight are never cached.
+ * Entries can optionally expire after a fixed time.
+ *
+ * Lookups and updates are cheap, so a single lock is used for simplicity.
+ * </pre>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class BoundedCache<K, V> {
+    /** Snapshot of the cache's counters. */
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        /** Number of entries currently in the cache. */
+        public final int size;
+        /** Combined weight of the entries currently in the cache. */
+        public final long weight;
+        public final long maxWeight;
+
+        Stats(long hits, long misses, long evictions, int size, long weight, long maxWeight) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+            this.weight = weight;
+            this.maxWeight = maxWeight;
+        }
+
+        public double hitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long weight;
+        final long expiresAt;
+
+        Entry(V value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** In access order, so the first entry is the least recently used one. */
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ToLongFunction<V> weigher;
+    private final long maxWeight;
+    private final long ttlNanos;
+
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxWeight max combined weight of all values, 0 to disable the cache.
+     * @param ttlMillis how long values stay valid after being added, in milliseconds, 0 for no expiry.
+     * @param weigher the weight of a single value, should be constant for the same value.
+     */
+    public BoundedCache(long maxWeight, long ttlMillis, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.ttlNanos = ttlMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(ttlMillis) : Long.MAX_VALUE;
+        this.weigher = weigher;
+    }
+
+    /** Approximate weight of a string in memory */
+    public static long weigh(String s) {
+        return 2L * s.length() + 40;
+    }
+
+    public boolean isEnabled() {
+        return maxWeight > 0;
+    }
+
+    public synchronized Optional<V> get(K key) {
+        Entry<V> e = entries.get(key);
+        if (e != null && isExpired(e, System.nanoTime())) {
+            remove(key);
+            e = null;
+        }
+        if (e == null) {
+            ++misses;
+            return Optional.empty();
+        }
+        ++hits;
+        return Optional.of(e.value);
+    }
+
+    /** Whether the key is in the cache (and not expired). Unlike {@link #get(Object)}, this doesn't count as a hit or miss. */
+    public synchronized boolean contains(K key) {
+        Entry<V> e = entries.get(key);
+        return e != null && !isExpired(e, System.nanoTime());
+    }
+
+    public synchronized void put(K key, V value) {
+        long w = weigher.applyAsLong(value);
+        remove(key);
+        if (w > maxWeight) return;
+
+        Iterator<Entry<V>> it = entries.values().iterator();
+        while (weight + w > maxWeight && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+            ++evictions;
+        }
+        long now = System.nanoTime();
+        entries.put(key, new Entry<>(value, w, ttlNanos == Long.MAX_VALUE ? Long.MAX_VALUE : now + ttlNanos));
+        weight += w;
+    }
+
+    public synchronized void invalidate(K key) {
+        remove(key);
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, entries.size(), weight, maxWeight);
+    }
+
+    private void remove(K key) {
+        Entry<V> e = entries.remove(key);
+        if (e != null) weight -= e.weight;
+    }
+
+    private boolean isExpired(Entry<V> e, long now) {
+        return e.expiresAt != Long.MAX_VALUE && now - e.expiresAt >= 0;
+    }
+}
@@ -0,0 +1,147 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Gzips a response body, if the client accepts it and the body is large enough to be worth it.
+ * The first {@link Keys#COMPRESSION_THRESHOLD} bytes are buffered. If the body turns out to be smaller than that, it's sent as-is, with a Content-Length.
+ * Otherwise the Content-Encoding is set and everything is streamed through the compressor, so the body is never held in memory as a whole.
+ * Flushing sends everything written so far to the client (once compression has started), so streamed pages still arrive incrementally.
+ *
+ * Only gzip is supported, the JDK has no brotli encoder. Static files can be served precompressed with brotli, see CorporaDataResponse.
+ * Must always be closed, or the end of the body is never sent.
+ * </pre>
+ */
+public class CompressingOutputStream extends OutputStream {
+    private final HttpServletResponse response;
+    private final byte[] buffer;
+    private int count = 0;
+    /** Null while buffering. */
+    private OutputStream out;
+    private CountingGzipStream gzip;
+    private long uncompressed = 0;
+    private boolean closed = false;
+
+    private static class CountingGzipStream extends GZIPOutputStream {
+        CountingGzipStream(OutputStream out) throws IOException {
+            super(out, 8192, true);
+        }
+
+        long getBytesWritten() {
+            return def.getBytesWritten();
+        }
+    }
+
+    private CompressingOutputStream(HttpServletResponse response, int threshold) {
+        this.response = response;
+        this.buffer = new byte[threshold];
+    }
+
+    /**
+     * Open the response body for writing, compressed if possible. Call this before writing anything else to the response.
+     * @return the response's own stream if compression is disabled or the client doesn't accept gzip.
+     */
+    public static OutputStream open(HttpServletRequest request, HttpServletResponse response, GlobalConfig config) throws IOException {
+        if (!config.getBool(Keys.COMPRESSION_ENABLED)) return response.getOutputStream();
+        // Whether or not we compress, a cached copy of this response is only valid for clients that accept the same encodings.
+        response.addHeader("Vary", "Accept-Encoding");
+        if (!acceptsGzip(request.getHeader("Accept-Encoding"))) return response.getOutputStream();
+        return new CompressingOutputStream(response, config.getInt(Keys.COMPRESSION_THRESHOLD));
+    }
+
+    /** Whether gzip is acceptable according to the Accept-Encoding header, either explicitly or through a wildcard. */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        Boolean gzip = null;
+        Boolean wildcard = null;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < params.length; ++i) {
+                String p = params[i].trim();
+                if (p.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(p.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) gzip = accepted;
+            else if (coding.equals("*")) wildcard = accepted;
+        }
+        return gzip != null ? gzip : wildcard != null && wildcard;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        uncompressed += len;
+        if (out == null) {
+            if (count + len <= buffer.length) {
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+                return;
+            }
+            start();
+        }
+        out.write(b, off, len);
+    }
+
+    /** The body is too large to send uncompressed, set the headers and send what we have so far through the compressor. */
+    private void start() throws IOException {
+        if (response.isCommitted()) {
+            // Something else already wrote to the response, too late to change the encoding.
+            out = response.getOutputStream();
+        } else {
+            response.setHeader("Content-Encoding", "gzip");
+            // In case it was set for the uncompressed body.
+            response.setContentLengthLong(-1);
+            gzip = new CountingGzipStream(response.getOutputStream());
+            out = gzip;
+        }
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // While buffering we don't know yet whether to compress, so there's nothing to flush.
+        if (out != null) out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        Metrics m = Metrics.getInstance();
+        m.counter("http_response_compression_total", "Response bodies that were eligible for compression, by the encoding they were sent with.", "encoding", gzip != null ? "gzip" : "identity").inc();
+        if (out == null) {
+            if (!response.isCommitted()) response.setContentLength(count);
+            out = response.getOutputStream();
+            out.write(buffer, 0, count);
+        }
+        if (gzip != null) {
+            // The deflater is gone after closing, so count before that.
+            gzip.finish();
+            m.counter("http_response_compression_input_bytes_total", "Bytes of response bodies before compression.").add(uncompressed);
+            m.counter("http_response_compression_output_bytes_total", "Bytes of response bodies after compression.").add(gzip.getBytesWritten());
+        }
+        out.close();
+    }
+}
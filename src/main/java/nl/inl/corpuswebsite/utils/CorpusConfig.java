@@ -1,30 +1,57 @@
 package nl.inl.corpuswebsite.utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.List;
+import java.io.StringReader;
 import java.util.Optional;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import javax.xml.xpath.XPathFactoryConfigurationException;
 
-import net.sf.saxon.dom.DocumentBuilderImpl;
-import net.sf.saxon.s9api.*;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
-import net.sf.saxon.xpath.XPathFactoryImpl;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
 
 /** Represents BlackLab index metadata */
 public class CorpusConfig {
 
+    /**
+     * Extracts everything we need from the xml in one expression, returning [displayName, documentFormat, listValues, timeModified].
+     * Missing values are returned as empty strings.
+     *
+     * For listValues: extract annotation ids for which we require the full list of values to be known by the frontend.
+     *
+     * Word properties can have a "uiType" property that determines if the input field should have
+     * autocompletion enabled, use a dropdown list, be a number range, etc.
+     * For the "select" value (e.g. a dropdown list) we need to get the possible values for that field from blacklab.
+     * Since they aren't contained in the initial json payload unless we specifically request them.
+     *
+     * Finds the fields marked with "select", and returns a comma-separated list of the field names.
+     * We can then use that list to request the config again, with the field values.
+     */
+    private static final XPathExecutable EXTRACT;
+    static {
+        try {
+            // Compiled expressions are immutable and thread-safe, and compiling is far more expensive than evaluating, so do it once.
+            EXTRACT = XslTransformer.PROCESSOR.newXPathCompiler().compile("("
+                + "string((/blacklabResponse/displayName)[1]), "
+                + "string((//documentFormat)[1]), "
+                + "string-join("
+                + "//annotation[not(isInternal='true') and uiType='select']/@name |"
+                + "//annotation[not(isInternal='true') and uiType='pos']/@name | "
+                + "//annotation[not(isInternal='true') and uiType='pos']/subannotation"
+                + ", ','), "
+                + "string((/blacklabResponse/versionInfo/timeModified)[1])"
+                + ")");
+        } catch (SaxonApiException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private final String jsonUnescaped;
 
     private final String corpusId;
@@ -34,36 +61,80 @@ public class CorpusConfig {
     private final Optional<String> corpusDataFormat;
 
     private final String listValues;
-    
-    public CorpusConfig(String corpusId, String configAsXml, String configAsJson)
-            throws SAXException, IOException, ParserConfigurationException, XPathExpressionException, SaxonApiException {
-        Processor proc = new Processor(false);
-        DocumentBuilder builder = proc.newDocumentBuilder();
-        XdmNode doc = builder.build(new StreamSource(new ByteArrayInputStream(configAsXml.getBytes(StandardCharsets.UTF_8))));
-        XPathCompiler xp = proc.newXPathCompiler();
 
+    private final Optional<String> timeModified;
+
+    public CorpusConfig(String corpusId, String configAsXml, String configAsJson) throws SaxonApiException {
+        XdmNode doc = XslTransformer.PROCESSOR.newDocumentBuilder().build(new StreamSource(new StringReader(configAsXml)));
+        XPathSelector selector = EXTRACT.load();
+        selector.setContextItem(doc);
+        XdmValue values = selector.evaluate();
+
+        this.corpusId = corpusId;
+        this.jsonUnescaped = configAsJson;
+        this.displayName = Optional.of(stringAt(values, 0)).filter(s -> !s.isEmpty()).or(() -> Optional.of(corpusId));
+        this.corpusDataFormat = Optional.of(stringAt(values, 1)).filter(s -> !s.isEmpty());
+        this.listValues = stringAt(values, 2);
+        this.timeModified = Optional.of(stringAt(values, 3)).filter(s -> !s.isEmpty());
+    }
+
+    private CorpusConfig(CorpusConfig other, String configAsJson) {
+        this.corpusId = other.corpusId;
+        this.jsonUnescaped = configAsJson;
+        this.displayName = other.displayName;
+        this.corpusDataFormat = other.corpusDataFormat;
+        this.listValues = other.listValues;
+        this.timeModified = other.timeModified;
+    }
+
+    private CorpusConfig(String corpusId, String configAsJson, Optional<String> displayName, Optional<String> corpusDataFormat, String listValues, Optional<String> timeModified) {
         this.corpusId = corpusId;
         this.jsonUnescaped = configAsJson;
-        this.displayName = xp.evaluate("/blacklabResponse/displayName", doc).stream().findFirst().map(XdmItem::getStringValue).or(() -> Optional.of(corpusId));
-        this.corpusDataFormat = xp.evaluate("//documentFormat", doc).stream().findFirst().map(XdmItem::getStringValue);
-
-        /**
-         * Extract annotation ids for which we require the full list of values to be known by the frontend.
-         *
-         * Word properties can have a "uiType" property that determines if the input field should have
-         * autocompletion enabled, use a dropdown list, be a number range, etc.
-         * For the "select" value (e.g. a dropdown list) we need to get the possible values for that field from blacklab.
-         * Since they aren't contained in the initial json payload unless we specifically request them.
-         *
-         * Finds the fields marked with "select", and returns a comma-separated list of the field names.
-         * We can then use that list to request the config again, with the field values.
-         */
-        this.listValues = xp.evaluate("string-join("
-            + "//annotation[not(isInternal='true') and uiType='select']/@name |"
-            + "//annotation[not(isInternal='true') and uiType='pos']/@name | "
-            + "//annotation[not(isInternal='true') and uiType='pos']/subannotation"
-            + ", ',')",
-        doc).stream().findFirst().map(XdmItem::getStringValue).orElse("");
+        this.displayName = displayName;
+        this.corpusDataFormat = corpusDataFormat;
+        this.listValues = listValues;
+        this.timeModified = timeModified;
+    }
+
+    /** Serialize what we extracted from BlackLab's response, to keep it in the {@link DiskCache}. Read back with {@link #fromPersisted(String)}. */
+    public String toPersisted() {
+        JsonObject o = new JsonObject();
+        o.addProperty("corpusId", corpusId);
+        displayName.ifPresent(v -> o.addProperty("displayName", v));
+        corpusDataFormat.ifPresent(v -> o.addProperty("corpusDataFormat", v));
+        o.addProperty("listValues", listValues);
+        timeModified.ifPresent(v -> o.addProperty("timeModified", v));
+        o.addProperty("json", jsonUnescaped);
+        return o.toString();
+    }
+
+    /** @throws RuntimeException if the contents are not what {@link #toPersisted()} writes. */
+    public static CorpusConfig fromPersisted(String persisted) {
+        JsonObject o = JsonParser.parseString(persisted).getAsJsonObject();
+        return new CorpusConfig(
+                o.get("corpusId").getAsString(),
+                o.get("json").getAsString(),
+                optString(o, "displayName"),
+                optString(o, "corpusDataFormat"),
+                o.get("listValues").getAsString(),
+                optString(o, "timeModified"));
+    }
+
+    private static Optional<String> optString(JsonObject o, String name) {
+        return Optional.ofNullable(o.get(name)).map(JsonElement::getAsString);
+    }
+
+    private static String stringAt(XdmValue values, int i) {
+        XdmItem item = values.itemAt(i);
+        return item != null ? item.getStringValue() : "";
+    }
+
+    /**
+     * The json contents can depend on the xml (see {@link #getListValues()}), so this allows parsing the xml only once.
+     * @return a copy of this config with the given json.
+     */
+    public CorpusConfig withJson(String configAsJson) {
+        return new CorpusConfig(this, configAsJson);
     }
 
     public String getCorpusId() {
@@ -89,4 +160,9 @@ public class CorpusConfig {
     public String getListValues() {
         return listValues;
     }
+
+    /** When documents were last added to or removed from the corpus, as reported by BlackLab. Empty for older BlackLab versions. */
+    public Optional<String> getTimeModified() {
+        return timeModified;
+    }
 }
@@ -9,8 +9,6 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
 
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.TransformerException;
 
 import org.apache.commons.lang3.StringUtils;
@@ -97,17 +95,34 @@ public class CorpusFileUtil {
      *
      * @param corpus - which corpus to load the file for.
      * @param fileName - the name of the file, excluding extension
-     * @param request - the request, used to retrieve auth credentials for blacklab-server in case they're needed.
-     * @param response - the response, used to return to the client when no credentials are available, and they're needed.
-     * @param config - the global configuration, used to copy auth headers from the client request to the blacklab request.
+     * @param api - used to retrieve the stylesheet from blacklab-server, with the client's credentials in case they're needed.
+     * @param config - the global configuration, used to find the file on disk.
      * @return the xsl transformer to use for transformation, note that this is always the same transformer.
      */
     public static Result<XslTransformer, TransformerException> getStylesheet(
             CorpusConfig corpus,
             GlobalConfig config,
             String fileName,
-            HttpServletRequest request,
-            HttpServletResponse response
+            BlackLabApi api
+    ) {
+        return getStylesheet(corpus, config, fileName, api, DiskCache.DISABLED, () -> {});
+    }
+
+    /**
+     * Like {@link #getStylesheet(CorpusConfig, GlobalConfig, String, BlackLabApi)},
+     * but stylesheets from BlackLab are kept in the disk cache, so they don't need to be retrieved again after a restart.
+     * They're revalidated in the background when read from disk.
+     *
+     * @param disk only pass an enabled cache for requests without credentials, as it's shared between users.
+     * @param onRemoteChanged called when revalidation found that the stylesheet in BlackLab changed, the returned transformer is outdated then.
+     */
+    public static Result<XslTransformer, TransformerException> getStylesheet(
+            CorpusConfig corpus,
+            GlobalConfig config,
+            String fileName,
+            BlackLabApi api,
+            DiskCache disk,
+            Runnable onRemoteChanged
     ) {
         Optional<String> fullFileName = corpus.getCorpusDataFormat().map(formatName -> fileName + "_" + formatName + ".xsl");
         Optional<String> fallbackFilename = Optional.of(fileName + ".xsl");
@@ -134,8 +149,11 @@ public class CorpusFileUtil {
 
         // alright, file not found. Try getting from BlackLab and parse that
         if (fileName.equals("article") && corpus.getCorpusDataFormat().isPresent()) { // for article files, we can try blacklab if there is no file on disk
-            return new BlackLabApi(request, response, config)
-                    .getStylesheet(corpus.getCorpusDataFormat().get())
+            String format = corpus.getCorpusDataFormat().get();
+            // Revalidation runs in the background where nobody can be asked to log in, so don't fetch on behalf of the client when using the disk cache
+            // (which is only for requests without credentials anyway).
+            BlackLabApi fetcher = disk.isEnabled() ? new BlackLabApi(null, config) : api;
+            return disk.getOrFetch("stylesheets", format, () -> fetcher.getStylesheet(format), onRemoteChanged)
                     .flatRecover(e -> e.getHttpStatusCode() == 404 ? Result.empty() : Result.error(e)) // if blacklab returns a 404, return empty instead of the http error.
                     .mapWithErrorHandling(xsl -> new XslTransformer(corpus.getCorpusDataFormat().get(), xsl))
                     .mapError(e -> new TransformerException(
@@ -0,0 +1,151 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Keeps things retrieved from BlackLab (corpus configs, stylesheets) in files under {@link Keys#CACHE_DIR}, so they survive a restart.
+ * This is a second level below the in-memory caches: after a restart the first requests can be served from here instead of waiting for BlackLab,
+ * but what's read from here may be outdated, so it should be revalidated against BlackLab in the background.
+ *
+ * Values are grouped in namespaces (subdirectories), with one file per key. Files are replaced atomically, so a crash never leaves a partial value.
+ * Only use this for values retrieved without user credentials, as they're shared between all users.
+ * </pre>
+ */
+public class DiskCache {
+    private static final Logger logger = Logger.getLogger(DiskCache.class.getName());
+
+    private static final String SUFFIX = ".cache";
+
+    /** Doesn't store anything, for values that can't be shared. */
+    public static final DiskCache DISABLED = new DiskCache(Optional.empty());
+
+    /** Empty when disabled. */
+    private final Optional<Path> dir;
+
+    /** Keys (namespace\0key) that were revalidated since startup, so that's only done once. */
+    private final Set<String> revalidated = ConcurrentHashMap.newKeySet();
+
+    /** @param dir where to keep the files, empty to disable. */
+    public DiskCache(Optional<Path> dir) {
+        this.dir = dir;
+    }
+
+    public boolean isEnabled() {
+        return dir.isPresent();
+    }
+
+    public Optional<String> get(String namespace, String key) {
+        Optional<String> value = dir.flatMap(d -> read(file(d, namespace, key)));
+        lookup(value.isPresent());
+        return value;
+    }
+
+    /** @return all values in the namespace, by key. */
+    public Map<String, String> getAll(String namespace) {
+        Map<String, String> values = new HashMap<>();
+        if (dir.isEmpty() || !Files.isDirectory(dir.get().resolve(namespace))) return values;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.get().resolve(namespace), "*" + SUFFIX)) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                String key = URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()), StandardCharsets.UTF_8);
+                read(f).ifPresent(v -> values.put(key, v));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Could not read cached " + namespace + " from " + dir.get(), e);
+        }
+        return values;
+    }
+
+    /** Store the value, unless the same value is already stored. */
+    public void put(String namespace, String key, String value) {
+        if (dir.isEmpty()) return;
+        Path file = file(dir.get(), namespace, key);
+        if (read(file).filter(value::equals).isPresent()) return;
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), "tmp", null);
+            try {
+                Files.writeString(tmp, value, StandardCharsets.UTF_8);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write " + file, e);
+        }
+    }
+
+    public void remove(String namespace, String key) {
+        if (dir.isEmpty()) return;
+        Path file = file(dir.get(), namespace, key);
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not delete " + file, e);
+        }
+    }
+
+    /**
+     * <pre>
+     * Get the value from disk if we have it, otherwise fetch and store it.
+     * A value from disk is fetched again in the background (once after startup), and replaced if it changed.
+     * </pre>
+     * @param fetch retrieves the current value, must not use the request (as it may run after the request is done).
+     * @param onChanged called after revalidation found a different value, e.g. to drop it from the in-memory caches.
+     */
+    public Result<String, QueryException> getOrFetch(String namespace, String key, Supplier<Result<String, QueryException>> fetch, Runnable onChanged) {
+        if (dir.isEmpty()) return fetch.get();
+        Optional<String> stored = get(namespace, key);
+        if (stored.isEmpty()) return fetch.get().tap(v -> put(namespace, key, v));
+
+        String id = namespace + "\0" + key;
+        if (revalidated.add(id)) {
+            boolean submitted = UpstreamExecutor.getInstance().submitBackground(() -> fetch.get().tap(fresh -> {
+                if (fresh.equals(stored.get())) return;
+                put(namespace, key, fresh);
+                onChanged.run();
+            }));
+            // Try again on the next lookup.
+            if (!submitted) revalidated.remove(id);
+        }
+        return Result.success(stored.get());
+    }
+
+    private static Path file(Path dir, String namespace, String key) {
+        return dir.resolve(namespace).resolve(URLEncoder.encode(key, StandardCharsets.UTF_8) + SUFFIX);
+    }
+
+    private static Optional<String> read(Path file) {
+        try {
+            return Optional.of(Files.readString(file, StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read " + file, e);
+            return Optional.empty();
+        }
+    }
+
+    private static void lookup(boolean hit) {
+        Metrics.getInstance().counter(hit ? "cache_hits_total" : "cache_misses_total", hit ? "Lookups that were served from the cache." : "Lookups that were not in the cache.", "cache", "disk").inc();
+    }
+}
@@ -0,0 +1,183 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Remembers the length (in tokens) of documents, so paging through a document doesn't require retrieving its metadata from BlackLab for every page.
+ * Filled whenever the metadata is retrieved anyway.
+ * Lengths are keyed on the corpus and the time it was last modified, so they're forgotten when documents are added to or removed from the corpus.
+ * At most {@link Keys#CACHE_DOCUMENT_LENGTHS} lengths are kept, the least recently used are dropped first.
+ *
+ * When {@link Keys#CACHE_DIR} is set, the lengths are also written to a file there, and read back on startup.
+ * The file is only appended to while running (on a thread of its own, so requests don't wait for the disk), and compacted on startup when it has grown too large.
+ * Only use this for documents everyone may see, as the lengths are shared between all users.
+ * </pre>
+ */
+public class DocumentLengthIndex {
+    private static final Logger logger = Logger.getLogger(DocumentLengthIndex.class.getName());
+
+    private static final String FILE_NAME = "document-lengths.tsv";
+
+    private final BoundedCache<String, Integer> lengths;
+    private final int maxEntries;
+    /** Null when not persisted. Only used on the writer thread (and while opening and closing), guarded by itself. */
+    private Writer out;
+    private final Object outLock = new Object();
+    /** Appends to the file, null when not persisted. */
+    private ExecutorService writer;
+
+    /**
+     * @param maxEntries max number of lengths to keep, 0 to disable.
+     * @param dir where to persist the lengths, if at all.
+     */
+    public DocumentLengthIndex(int maxEntries, Optional<Path> dir) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.lengths = new BoundedCache<>(this.maxEntries, 0, __ -> 1);
+        if (this.maxEntries > 0) dir.ifPresent(this::open);
+    }
+
+    public boolean isEnabled() {
+        return lengths.isEnabled();
+    }
+
+    /** @param field the field as requested by the client, empty for the main annotated field. */
+    public Optional<Integer> get(CorpusConfig corpus, String docId, Optional<String> field) {
+        if (!isEnabled()) return Optional.empty();
+        return lengths.get(key(corpus, docId, field));
+    }
+
+    public void put(CorpusConfig corpus, String docId, Optional<String> field, int length) {
+        if (!isEnabled()) return;
+        String key = key(corpus, docId, field);
+        synchronized (this) {
+            // Lengths don't change without the corpus changing, so there's nothing new to write if we already know it.
+            if (lengths.contains(key)) return;
+            lengths.put(key, length);
+            if (writer == null) return;
+            String line = URLEncoder.encode(key, StandardCharsets.UTF_8) + "\t" + length + "\n";
+            try {
+                writer.execute(() -> append(line));
+            } catch (RejectedExecutionException e) {
+                // Shutting down, it's only lost from the file.
+            }
+        }
+    }
+
+    private void append(String line) {
+        synchronized (outLock) {
+            if (out == null) return;
+            try {
+                out.write(line);
+                out.flush();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not write to the document length index, no longer persisting it", e);
+                closeFile();
+            }
+        }
+    }
+
+    public BoundedCache.Stats getStats() {
+        return lengths.getStats();
+    }
+
+    /** Write what's still pending, and close the file. */
+    public synchronized void close() {
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        synchronized (outLock) {
+            closeFile();
+        }
+    }
+
+    private void closeFile() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing we can do about it
+        }
+        out = null;
+    }
+
+    private static String key(CorpusConfig corpus, String docId, Optional<String> field) {
+        return String.join("\0", corpus.getCorpusId(), corpus.getTimeModified().orElse(""), docId, field.orElse(""));
+    }
+
+    /** Read the existing file (compacting it if needed) and open it for appending. */
+    private void open(Path dir) {
+        Path file = dir.resolve(FILE_NAME);
+        try {
+            Files.createDirectories(dir);
+            // Later lines win, and the last ones are the most recently added, so keep those when there are too many.
+            Map<String, Integer> read = new LinkedHashMap<>();
+            int lines = 0;
+            if (Files.exists(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab < 0) continue;
+                    try {
+                        String key = URLDecoder.decode(line.substring(0, tab), StandardCharsets.UTF_8);
+                        int length = Integer.parseInt(line.substring(tab + 1));
+                        read.remove(key);
+                        read.put(key, length);
+                        ++lines;
+                    } catch (IllegalArgumentException e) {
+                        // a partially written line, e.g. after a crash.
+                    }
+                }
+            }
+            List<Map.Entry<String, Integer>> entries = new ArrayList<>(read.entrySet());
+            entries = entries.subList(Math.max(0, entries.size() - maxEntries), entries.size());
+            for (Map.Entry<String, Integer> e : entries) lengths.put(e.getKey(), e.getValue());
+
+            if (lines > 2 * entries.size()) {
+                Path tmp = dir.resolve(FILE_NAME + ".tmp");
+                try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    for (Map.Entry<String, Integer> e : entries) {
+                        w.write(URLEncoder.encode(e.getKey(), StandardCharsets.UTF_8) + "\t" + e.getValue() + "\n");
+                    }
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            writer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "document-length-index");
+                t.setDaemon(true);
+                return t;
+            });
+            logger.info("Read " + entries.size() + " document lengths from " + file);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not open the document length index at " + file + ", lengths will only be kept in memory", e);
+        }
+    }
+}
@@ -17,6 +17,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -80,6 +81,9 @@ public class GlobalConfig implements ServletContextListener {
 
     private final Properties instanceProps;
 
+    /** Incremented every time the properties are (re)loaded, so things derived from the config can tell when they're outdated. */
+    private final AtomicLong generation = new AtomicLong();
+
     public enum Keys {
         /**
          * Message to display at the top of the page. Note that this may contain HTML. https://github.com/INL/corpus-frontend/issues/247
@@ -137,7 +141,134 @@ public class GlobalConfig implements ServletContextListener {
          * One of "header", "cookie", "parameter" (query param). Attribute is not supported as creating an AJP request from Java is not possible.
          * Defaults to "header".
          */
-        AUTH_TARGET_TYPE("auth.target.type");
+        AUTH_TARGET_TYPE("auth.target.type"),
+
+        // settings for the connections to BlackLab
+        /**
+         * Max number of simultaneous connections to the BlackLab host, further requests wait for a connection to become available. Defaults to 32.
+         * The JVM must be started with -Dhttp.maxConnections of at least this much, or some connections won't be kept alive.
+         */
+        UPSTREAM_MAX_CONNECTIONS("upstream.maxConnections"),
+        /** Max time to wait for a connection to BlackLab to become available, in milliseconds. Defaults to 30000. */
+        UPSTREAM_POOL_TIMEOUT("upstream.poolTimeout"),
+        /** Timeout for establishing a connection to BlackLab, in milliseconds. 0 for no timeout. Defaults to 5000. */
+        UPSTREAM_CONNECT_TIMEOUT("upstream.connectTimeout"),
+        /** Timeout for reading the response from BlackLab, in milliseconds. 0 for no timeout. Defaults to 120000. */
+        UPSTREAM_READ_TIMEOUT("upstream.readTimeout"),
+        /** Max number of background threads used to process parts of a request in parallel (e.g. transforming metadata while retrieving a document). Defaults to 16. */
+        UPSTREAM_THREADS("upstream.threads"),
+        /** Max time a part of a request processed in the background may take, in milliseconds. Defaults to 30000. */
+        UPSTREAM_STAGE_TIMEOUT("upstream.stageTimeout"),
+        /** Max number of simultaneous requests to BlackLab for corpus info. 0 for no limit. Defaults to 8. See {@link UpstreamGuard}. */
+        UPSTREAM_LIMIT_CORPUS_INFO("upstream.limit.corpusInfo"),
+        /** Max number of simultaneous requests to BlackLab for document metadata. 0 for no limit. Defaults to 16. */
+        UPSTREAM_LIMIT_METADATA("upstream.limit.metadata"),
+        /** Max number of simultaneous requests to BlackLab for document contents. 0 for no limit. Defaults to 16. */
+        UPSTREAM_LIMIT_CONTENTS("upstream.limit.contents"),
+        /** Max number of simultaneous requests to BlackLab for stylesheets. 0 for no limit. Defaults to 4. */
+        UPSTREAM_LIMIT_STYLESHEET("upstream.limit.stylesheet"),
+        /** How long to wait when an operation is at its limit before failing with a 503, in milliseconds. Defaults to 1000. */
+        UPSTREAM_LIMIT_WAIT("upstream.limit.wait"),
+        /** Percentage of failed or slow requests to BlackLab that opens the circuit breaker. 0 to disable the breaker. Defaults to 50. */
+        UPSTREAM_BREAKER_FAILURE_RATE("upstream.breaker.failureRate"),
+        /** Number of recent requests the failure rate is calculated over. Defaults to 20. */
+        UPSTREAM_BREAKER_WINDOW("upstream.breaker.window"),
+        /** Requests that take longer than this (until the response headers are received) count as failed, in milliseconds. 0 to disable. Defaults to 10000. */
+        UPSTREAM_BREAKER_SLOW_CALL("upstream.breaker.slowCall"),
+        /** How long the breaker stays open (failing all requests immediately) before a request is tried again, in milliseconds. Defaults to 10000. */
+        UPSTREAM_BREAKER_OPEN_DURATION("upstream.breaker.openDuration"),
+
+        /**
+         * Stream document contents from BlackLab through the article stylesheet straight into the response,
+         * instead of reading and transforming the whole document in memory first. Defaults to false.
+         * Errors during transformation will then be shown inline, as part of the document may already have been sent.
+         */
+        ARTICLE_STREAMING("article.streaming"),
+        /**
+         * Send the page header (with the links to css and js) before retrieving the document contents from BlackLab, so the browser can load those in the meantime.
+         * This happens once the metadata was retrieved, so a login prompt from BlackLab still reaches the user. Defaults to true. Errors retrieving the document are shown inline either way.
+         */
+        ARTICLE_EARLY_FLUSH("article.earlyFlush"),
+        /**
+         * When a document is paginated, retrieve and transform the adjacent page(s) in the background after serving a page,
+         * so they're served from memory when the user pages on. One of "next", "both" (next and previous) or "none". Defaults to "next".
+         * Only for requests without credentials. Has no effect when {@link #CACHE} is disabled.
+         */
+        ARTICLE_PREFETCH("article.prefetch"),
+
+        /**
+         * Corpora to load the config, search.xml and stylesheets of in the background on startup, so the first visitors don't have to wait for them.
+         * Comma-separated corpus ids, or "*" for all corpora BlackLab lists. Not set by default, meaning no warmup.
+         * /ready responds with 503 until this is done. Has no effect when {@link #CACHE} is disabled.
+         */
+        WARMUP_CORPORA("warmup.corpora"),
+
+        /** Max number of documents whose metadata can be requested at once, through /api/${corpus}/docs?ids=a,b,c. Defaults to 100. */
+        API_BATCH_MAX("api.batch.max"),
+        /** Max number of documents in such a request that are retrieved from BlackLab and transformed at the same time. Defaults to 8. */
+        API_BATCH_CONCURRENCY("api.batch.concurrency"),
+
+        /**
+         * Handle requests that wait on BlackLab (documents and the api) asynchronously, so they don't hold on to the container's request threads.
+         * Uses virtual threads when running on java 21+. Defaults to true.
+         */
+        REQUEST_ASYNC("request.async"),
+        /** Number of threads to handle asynchronous requests with, when virtual threads are not available. Defaults to 200. */
+        REQUEST_THREADS("request.threads"),
+
+        /** How long to cache corpus configs retrieved from BlackLab, in seconds. Defaults to 600. Has no effect when {@link #CACHE} is disabled. */
+        CACHE_CORPUS_CONFIG_TTL("cache.corpusConfig.ttl"),
+        /** How long to cache failures to retrieve a corpus config (e.g. the corpus does not exist), in seconds. Defaults to 10. */
+        CACHE_CORPUS_CONFIG_ERROR_TTL("cache.corpusConfig.errorTtl"),
+        /**
+         * How long a corpus config may still be used after its ttl has run out, in seconds. Defaults to 3600.
+         * Configs are refreshed in the background, and the old config is used until that's done, or while BlackLab is unreachable.
+         */
+        CACHE_CORPUS_CONFIG_MAX_STALE("cache.corpusConfig.maxStale"),
+        /** Max memory used to cache transformed documents and metadata, in megabytes. 0 to disable. Defaults to 64. Has no effect when {@link #CACHE} is disabled. */
+        CACHE_ARTICLES_SIZE("cache.articles.size"),
+        /** How long to cache transformed documents and metadata, in seconds. Defaults to 3600. */
+        CACHE_ARTICLES_TTL("cache.articles.ttl"),
+        /**
+         * Max number of document lengths to remember, so paging through documents doesn't require retrieving their metadata every time. 0 to disable.
+         * Defaults to 100000. Has no effect when {@link #CACHE} is disabled. See {@link DocumentLengthIndex}.
+         */
+        CACHE_DOCUMENT_LENGTHS("cache.documentLengths"),
+        /** Directory to keep caches in across restarts. Not set by default, meaning caches are only kept in memory. */
+        CACHE_DIR("cache.dir"),
+        /** Max memory used for prefetched pages of documents (see {@link #ARTICLE_PREFETCH}), in megabytes. 0 to disable. Defaults to 16. */
+        CACHE_PREFETCH_SIZE("cache.prefetch.size"),
+        /** How long to keep prefetched pages that haven't been requested, in seconds. Defaults to 300. */
+        CACHE_PREFETCH_TTL("cache.prefetch.ttl"),
+        /**
+         * Corpus configs and stylesheets retrieved with user credentials are cached per user (identified by a hash of the credentials).
+         * Max number of users to cache them for. 0 to disable. Defaults to 1000. Has no effect when {@link #CACHE} is disabled.
+         */
+        CACHE_PRINCIPAL_MAX("cache.principal.max"),
+        /** Max number of cached corpus configs and stylesheets per user. Defaults to 32. */
+        CACHE_PRINCIPAL_ENTRIES("cache.principal.entries"),
+        /** How long to cache corpus configs and stylesheets per user, in seconds. Defaults to 60. */
+        CACHE_PRINCIPAL_TTL("cache.principal.ttl"),
+        /**
+         * How long to remember where files in the corpus config directories were found, in seconds. Defaults to 60.
+         * Has no effect when {@link #CACHE} is disabled.
+         */
+        CACHE_FILES_TTL("cache.files.ttl"),
+        /** Max number of file locations to remember, see {@link #CACHE_FILES_TTL}. 0 to disable. Defaults to 10000. */
+        CACHE_FILES_MAX("cache.files.max"),
+        /**
+         * Max memory used to cache rendered pages that don't depend on BlackLab (about, help, corpora, etc.), in megabytes. 0 to disable. Defaults to 8.
+         * Has no effect when {@link #CACHE} is disabled.
+         */
+        CACHE_PAGES_SIZE("cache.pages.size"),
+
+        /** Gzip html and api responses when the client accepts it. Defaults to true. See {@link CompressingOutputStream}. */
+        COMPRESSION_ENABLED("compression.enabled"),
+        /** Responses smaller than this are not compressed, in bytes. Defaults to 1024. */
+        COMPRESSION_THRESHOLD("compression.threshold"),
+
+        /** Serve request, upstream, xslt and cache metrics on /metrics, in the Prometheus text format. Defaults to false. */
+        METRICS_ENABLED("metrics.enabled");
 
         public final String s;
         Keys(String s) {
@@ -168,6 +299,46 @@ public class GlobalConfig implements ServletContextListener {
         set(defaultProps, Keys.AUTH_SOURCE_TYPE,                 "header");
         set(defaultProps, Keys.AUTH_TARGET_NAME,                 "Authorization");
         set(defaultProps, Keys.AUTH_TARGET_TYPE,                 "header");
+
+        set(defaultProps, Keys.UPSTREAM_MAX_CONNECTIONS,         "32");
+        set(defaultProps, Keys.UPSTREAM_POOL_TIMEOUT,            "30000");
+        set(defaultProps, Keys.UPSTREAM_CONNECT_TIMEOUT,         "5000");
+        set(defaultProps, Keys.UPSTREAM_READ_TIMEOUT,            "120000");
+        set(defaultProps, Keys.UPSTREAM_THREADS,                 "16");
+        set(defaultProps, Keys.UPSTREAM_STAGE_TIMEOUT,           "30000");
+        set(defaultProps, Keys.UPSTREAM_LIMIT_CORPUS_INFO,       "8");
+        set(defaultProps, Keys.UPSTREAM_LIMIT_METADATA,          "16");
+        set(defaultProps, Keys.UPSTREAM_LIMIT_CONTENTS,          "16");
+        set(defaultProps, Keys.UPSTREAM_LIMIT_STYLESHEET,        "4");
+        set(defaultProps, Keys.UPSTREAM_LIMIT_WAIT,              "1000");
+        set(defaultProps, Keys.UPSTREAM_BREAKER_FAILURE_RATE,    "50");
+        set(defaultProps, Keys.UPSTREAM_BREAKER_WINDOW,          "20");
+        set(defaultProps, Keys.UPSTREAM_BREAKER_SLOW_CALL,       "10000");
+        set(defaultProps, Keys.UPSTREAM_BREAKER_OPEN_DURATION,   "10000");
+        set(defaultProps, Keys.ARTICLE_STREAMING,                "false");
+        set(defaultProps, Keys.ARTICLE_EARLY_FLUSH,              "true");
+        set(defaultProps, Keys.ARTICLE_PREFETCH,                 "next");
+        set(defaultProps, Keys.API_BATCH_MAX,                    "100");
+        set(defaultProps, Keys.API_BATCH_CONCURRENCY,            "8");
+        set(defaultProps, Keys.REQUEST_ASYNC,                    "true");
+        set(defaultProps, Keys.REQUEST_THREADS,                  "200");
+        set(defaultProps, Keys.CACHE_CORPUS_CONFIG_TTL,          "600");
+        set(defaultProps, Keys.CACHE_CORPUS_CONFIG_ERROR_TTL,    "10");
+        set(defaultProps, Keys.CACHE_CORPUS_CONFIG_MAX_STALE,    "3600");
+        set(defaultProps, Keys.CACHE_ARTICLES_SIZE,              "64");
+        set(defaultProps, Keys.CACHE_ARTICLES_TTL,               "3600");
+        set(defaultProps, Keys.CACHE_PREFETCH_SIZE,              "16");
+        set(defaultProps, Keys.CACHE_PREFETCH_TTL,               "300");
+        set(defaultProps, Keys.CACHE_DOCUMENT_LENGTHS,           "100000");
+        set(defaultProps, Keys.CACHE_PRINCIPAL_MAX,              "1000");
+        set(defaultProps, Keys.CACHE_PRINCIPAL_ENTRIES,          "32");
+        set(defaultProps, Keys.CACHE_PRINCIPAL_TTL,              "60");
+        set(defaultProps, Keys.CACHE_FILES_TTL,                  "60");
+        set(defaultProps, Keys.CACHE_FILES_MAX,                  "10000");
+        set(defaultProps, Keys.CACHE_PAGES_SIZE,                 "8");
+        set(defaultProps, Keys.COMPRESSION_ENABLED,              "true");
+        set(defaultProps, Keys.COMPRESSION_THRESHOLD,            "1024");
+        set(defaultProps, Keys.METRICS_ENABLED,                  "false");
         // JSPATH and CF_URL_ON_CLIENT properly initialized later, because we need the servlet context path for that.
         // JSPATH is also dependent on CF_URL_ON_CLIENT, so we need to watch out for the case where the user CF_URL_ON_CLIENT but not JSPATH.
         set(defaultProps, Keys.JSPATH,                           "/corpus-frontend/js");
@@ -227,10 +398,20 @@ public class GlobalConfig implements ServletContextListener {
         return get(instanceProps, k);
     }
 
+    /** Changes whenever the config file is reloaded. */
+    public long getGeneration() {
+        return generation.get();
+    }
+
     public boolean getBool(Keys k) {
         return Boolean.parseBoolean(get(instanceProps, k));
     }
 
+    /** Values are validated when loading the config, so this is always a valid number (provided the key has a numeric default). */
+    public int getInt(Keys k) {
+        return Integer.parseInt(get(instanceProps, k));
+    }
+
     private static String get(Properties p, Keys k) {
         return p.getProperty(k.toString());
     }
@@ -262,6 +443,8 @@ public class GlobalConfig implements ServletContextListener {
      * Replace missing props with their defaults.
      */
     private void validateAndNormalize() {
+        generation.incrementAndGet();
+
         // First, replace all properties with the properly capitalized versions
         for (String key : instanceProps.stringPropertyNames()) {
             final String currentValue = instanceProps.getProperty(key);
@@ -299,6 +482,21 @@ public class GlobalConfig implements ServletContextListener {
                     Keys.CF_URL_ON_CLIENT, Keys.JSPATH, Keys.JSPATH, get(Keys.JSPATH)));
         }
 
+        for (Keys k : new Keys[] {
+                Keys.UPSTREAM_MAX_CONNECTIONS, Keys.UPSTREAM_POOL_TIMEOUT, Keys.UPSTREAM_CONNECT_TIMEOUT, Keys.UPSTREAM_READ_TIMEOUT,
+                Keys.UPSTREAM_THREADS, Keys.UPSTREAM_STAGE_TIMEOUT,
+                Keys.UPSTREAM_LIMIT_CORPUS_INFO, Keys.UPSTREAM_LIMIT_METADATA, Keys.UPSTREAM_LIMIT_CONTENTS, Keys.UPSTREAM_LIMIT_STYLESHEET, Keys.UPSTREAM_LIMIT_WAIT,
+                Keys.UPSTREAM_BREAKER_FAILURE_RATE, Keys.UPSTREAM_BREAKER_WINDOW, Keys.UPSTREAM_BREAKER_SLOW_CALL, Keys.UPSTREAM_BREAKER_OPEN_DURATION,
+                Keys.API_BATCH_MAX, Keys.API_BATCH_CONCURRENCY,
+                Keys.REQUEST_THREADS,
+                Keys.CACHE_CORPUS_CONFIG_TTL, Keys.CACHE_CORPUS_CONFIG_ERROR_TTL, Keys.CACHE_CORPUS_CONFIG_MAX_STALE, Keys.CACHE_ARTICLES_SIZE, Keys.CACHE_ARTICLES_TTL,
+                Keys.CACHE_PREFETCH_SIZE, Keys.CACHE_PREFETCH_TTL, Keys.CACHE_DOCUMENT_LENGTHS,
+                Keys.CACHE_PRINCIPAL_MAX, Keys.CACHE_PRINCIPAL_ENTRIES, Keys.CACHE_PRINCIPAL_TTL, Keys.CACHE_FILES_TTL, Keys.CACHE_FILES_MAX, Keys.CACHE_PAGES_SIZE,
+                Keys.COMPRESSION_THRESHOLD
+        }) {
+            validateInt(k);
+        }
+
         if (Stream.of("header", "cookie", "attribute", "parameter").noneMatch(get(Keys.AUTH_SOURCE_TYPE)::equalsIgnoreCase)) {
             logger.warning("Invalid value for " + Keys.AUTH_SOURCE_TYPE + ": " + get(Keys.AUTH_SOURCE_TYPE) + ". Defaulting to 'header'.");
             set(Keys.AUTH_SOURCE_TYPE, "header");
@@ -309,6 +507,21 @@ public class GlobalConfig implements ServletContextListener {
         }
     }
 
+    /** Replace the value with the default if it's not a non-negative integer. */
+    private void validateInt(Keys k) {
+        String value = StringUtils.trim(get(k));
+        try {
+            if (Integer.parseInt(value) >= 0) {
+                set(k, value);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        logger.warning("Invalid value for " + k + ": " + value + ". Defaulting to '" + get(defaultProps, k) + "'.");
+        set(k, get(defaultProps, k));
+    }
+
     /**
      * Config file resolution order:
      * Environment variables first (corpus frontend, then blacklab as fallback).
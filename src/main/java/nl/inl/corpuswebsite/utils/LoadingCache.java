@@ -0,0 +1,280 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <pre>
+ * A concurrent cache that loads missing or expired values on demand.
+ *
+ * Loading is single-flight: while a value is being loaded, other threads asking for the same key wait for that load
+ * instead of starting their own. Threads asking for other keys are not blocked at all.
+ * Every value gets its own time-to-live when it is loaded, so e.g. errors can be cached for a shorter time than regular values.
+ *
+ * When the loader throws, nothing is cached, the exception is rethrown in the loading thread,
+ * and threads that were waiting for that load will run the loader themselves.
+ * This is so exceptions that are specific to a request (such as a {@link ReturnToClientException}) end up in the right request.
+ *
+ * Optionally, values can be refreshed in the background (stale-while-revalidate):
+ * values that are in use are reloaded shortly before their time-to-live runs out, and after it has run out,
+ * the old value is still returned for up to maxStale milliseconds while a reload is running.
+ * If the reload produces a worse value (e.g. an error because the server is down), the old value can be kept.
+ * </pre>
+ *
+ * @param <K> key type
+ * @param <V> value type, should not be null.
+ */
+public class LoadingCache<K, V> {
+    private static final Logger logger = Logger.getLogger(LoadingCache.class.getName());
+
+    /** How often to check for values that need to be refreshed, in milliseconds. Values are refreshed this long before they go stale. */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    /** Snapshot of the cache's counters. */
+    public static class Stats {
+        /** Number of lookups that returned a cached value (including lookups that waited for a load by another thread). */
+        public final long hits;
+        /** Number of lookups that had to load the value. */
+        public final long misses;
+        /** Number of entries currently in the cache (including expired entries that haven't been reloaded yet). */
+        public final int size;
+        /** Number of background refreshes (both successful and failed). */
+        public final long refreshes;
+        /** Number of lookups that returned a value past its time-to-live, because it was being refreshed or the refresh failed. */
+        public final long staleHits;
+
+        Stats(long hits, long misses, int size, long refreshes, long staleHits) {
+            this.hits = hits;
+            this.misses = misses;
+            this.size = size;
+            this.refreshes = refreshes;
+            this.staleHits = staleHits;
+        }
+
+        public double hitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    private static class Entry<V> {
+        final CompletableFuture<V> value = new CompletableFuture<>();
+        /** System.nanoTime() after which the value is stale and should be refreshed, only valid once the value is complete. */
+        volatile long refreshAt;
+        /** System.nanoTime() after which the entry is expired and may no longer be returned, only valid once the value is complete. */
+        volatile long expiresAt;
+        /** Whether the value was returned since it was loaded (or last refreshed), unused values are not refreshed. */
+        volatile boolean accessed = false;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        boolean isExpired(long now) {
+            return value.isDone() && now - expiresAt >= 0;
+        }
+
+        boolean isStale(long now) {
+            return value.isDone() && now - refreshAt >= 0;
+        }
+    }
+
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ToLongFunction<V> ttlMillis;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+
+    // Background refresh, null/0 if disabled.
+    private final Function<K, V> refresher;
+    private final ToLongFunction<V> maxStaleMillis;
+    private final BiPredicate<V, V> keepOld;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param ttlMillis time to live for a freshly loaded value, in milliseconds. Evaluated every time a value is loaded,
+     *                  so it may depend on the value (e.g. a shorter ttl for errors) or the current configuration.
+     *                  0 means the value is not cached at all (but concurrent loads are still merged).
+     */
+    public LoadingCache(ToLongFunction<V> ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.refresher = null;
+        this.maxStaleMillis = v -> 0;
+        this.keepOld = null;
+        this.executor = null;
+    }
+
+    /**
+     * A cache that refreshes values in the background.
+     *
+     * @param ttlMillis see {@link #LoadingCache(ToLongFunction)}. Values in use are refreshed shortly before this runs out.
+     * @param maxStaleMillis how long after its ttl has run out a value may still be returned, while it is being refreshed.
+     *                       Evaluated when the value is loaded. 0 means values are never returned after their ttl.
+     * @param refresher loads values in the background. Unlike the loader passed to {@link #get(Object, Function)},
+     *                  this should not depend on the request that happens to trigger the refresh.
+     * @param keepOld called with the old and the refreshed value, return true to keep the old value (with its original expiry),
+     *                the refresh is then retried after the ttl of the refreshed value.
+     * @param executor runs the refreshes, and periodically checks for values that need to be refreshed.
+     */
+    public LoadingCache(ToLongFunction<V> ttlMillis, ToLongFunction<V> maxStaleMillis, Function<K, V> refresher, BiPredicate<V, V> keepOld, ScheduledExecutorService executor) {
+        this.ttlMillis = ttlMillis;
+        this.refresher = refresher;
+        this.maxStaleMillis = maxStaleMillis;
+        this.keepOld = keepOld;
+        this.executor = executor;
+        executor.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the value for the key, loading it if it's not cached or has expired.
+     * When background refresh is enabled, a stale (but not yet expired) value is returned immediately, and refreshed in the background.
+     *
+     * @param key the key
+     * @param loader called with the key to load the value when it's missing. Should not return null.
+     * @return the value
+     * @throws RuntimeException whatever the loader throws
+     */
+    public V get(K key, Function<K, V> loader) {
+        return get(key, loader, 0, null);
+    }
+
+    /**
+     * Like {@link #get(Object, Function)}, but waits at most timeoutMillis for a value another thread is loading.
+     * Loading the value in this thread is not limited, the loader should take care of that itself.
+     *
+     * @param timeoutMillis how long to wait for another thread's load, 0 to wait until it's done
+     * @param onTimeout called with the key when waiting timed out, its result is returned (but not cached)
+     */
+    public V get(K key, Function<K, V> loader, long timeoutMillis, Function<K, V> onTimeout) {
+        while (true) {
+            Entry<V> existing = entries.get(key);
+            long now = System.nanoTime();
+            if (existing != null && !existing.isExpired(now)) {
+                hits.increment();
+                V value;
+                try {
+                    value = timeoutMillis > 0 ? existing.value.get(timeoutMillis, TimeUnit.MILLISECONDS) : existing.value.get();
+                } catch (TimeoutException e) {
+                    return onTimeout.apply(key);
+                } catch (ExecutionException e) {
+                    // The loading thread failed, it has already removed the entry. Load it ourselves.
+                    return load(key, loader, null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for " + key, e);
+                }
+                existing.accessed = true;
+                if (refresher != null && existing.isStale(now)) {
+                    staleHits.increment();
+                    refresh(key, existing);
+                }
+                return value;
+            }
+
+            Entry<V> mine = new Entry<>();
+            boolean installed = existing == null ? entries.putIfAbsent(key, mine) == null : entries.replace(key, existing, mine);
+            if (installed) return load(key, loader, mine);
+            // Another thread got there first, use its entry.
+        }
+    }
+
+    /** Load the value, and complete the entry if we own one. */
+    private V load(K key, Function<K, V> loader, Entry<V> entry) {
+        misses.increment();
+        V value;
+        try {
+            value = loader.apply(key);
+        } catch (RuntimeException | Error e) {
+            if (entry != null) {
+                entries.remove(key, entry);
+                entry.value.completeExceptionally(e);
+            }
+            throw e;
+        }
+
+        if (entry != null) complete(key, entry, value);
+        return value;
+    }
+
+    private void complete(K key, Entry<V> entry, V value) {
+        long ttl = ttlMillis.applyAsLong(value);
+        long now = System.nanoTime();
+        entry.refreshAt = now + ttl * 1_000_000L;
+        entry.expiresAt = entry.refreshAt + (ttl > 0 ? maxStaleMillis.applyAsLong(value) * 1_000_000L : 0);
+        entry.value.complete(value);
+        if (ttl <= 0) entries.remove(key, entry);
+    }
+
+    /** Reload the entry in the background, unless it's already being reloaded. */
+    private void refresh(K key, Entry<V> entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) return;
+        entry.accessed = false;
+        try {
+            executor.execute(() -> {
+                try {
+                    refreshes.increment();
+                    V old = entry.value.getNow(null);
+                    V fresh = refresher.apply(key);
+                    if (old != null && keepOld.test(old, fresh)) {
+                        // Try again later, but don't extend the expiry, so we don't keep the old value forever.
+                        entry.refreshAt = System.nanoTime() + ttlMillis.applyAsLong(fresh) * 1_000_000L;
+                    } else {
+                        Entry<V> replacement = new Entry<>();
+                        if (entries.replace(key, entry, replacement)) complete(key, replacement, fresh);
+                    }
+                } catch (RuntimeException | Error e) {
+                    logger.log(Level.WARNING, "Error refreshing " + key + " in the background", e);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the next lookup will just load it again when it expires.
+            entry.refreshing.set(false);
+        }
+    }
+
+    /** Refresh values that are in use before they become stale, and drop expired values. */
+    private void sweep() {
+        long soon = System.nanoTime() + SWEEP_INTERVAL * 1_000_000L;
+        entries.forEach((key, entry) -> {
+            if (entry.isExpired(System.nanoTime())) entries.remove(key, entry);
+            else if (entry.accessed && entry.isStale(soon)) refresh(key, entry);
+        });
+    }
+
+    /**
+     * Add a value obtained elsewhere (e.g. read from disk after a restart), to be used until it's refreshed.
+     * The value is considered stale, so it's refreshed in the background right away, and returned for at most maxStale milliseconds meanwhile.
+     * Only for caches with background refresh. Does nothing if the key is already present.
+     */
+    public void putStale(K key, V value) {
+        if (refresher == null) throw new IllegalStateException("Only caches with background refresh can hold stale values");
+        Entry<V> entry = new Entry<>();
+        long now = System.nanoTime();
+        entry.refreshAt = now;
+        entry.expiresAt = now + maxStaleMillis.applyAsLong(value) * 1_000_000L;
+        entry.value.complete(value);
+        if (entries.putIfAbsent(key, entry) == null) refresh(key, entry);
+    }
+
+    /** Remove the key, the next lookup will load it again. */
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.sum(), misses.sum(), entries.size(), refreshes.sum(), staleHits.sum());
+    }
+}
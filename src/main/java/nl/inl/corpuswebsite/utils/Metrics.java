@@ -0,0 +1,188 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * <pre>
+ * Minimal metrics registry, written in the Prometheus text exposition format by the /metrics page.
+ *
+ * Counters and histograms are backed by {@link LongAdder}s, so recording is cheap and never blocks.
+ * Values that are already tracked elsewhere (e.g. cache statistics) are registered as callbacks, and read when the metrics are written.
+ *
+ * Labels are passed as alternating names and values, e.g. counter("requests_total", "help", "response", "ArticleResponse").
+ * Keep the number of distinct label values small, every combination is kept forever.
+ * </pre>
+ */
+public class Metrics {
+    /** Default histogram buckets for durations, in seconds. */
+    public static final double[] DURATION_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+
+    public interface Sample {
+        void write(Writer out, String name, String labels) throws IOException;
+    }
+
+    public static class Counter implements Sample {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        @Override
+        public void write(Writer out, String name, String labels) throws IOException {
+            line(out, name, labels, value.sum());
+        }
+    }
+
+    public static class Histogram implements Sample {
+        private final double[] buckets;
+        /** Observations per bucket (not cumulative), the last one is +Inf */
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] buckets) {
+            this.buckets = buckets;
+            this.counts = new LongAdder[buckets.length + 1];
+            for (int i = 0; i < counts.length; ++i) counts[i] = new LongAdder();
+        }
+
+        public void observe(double value) {
+            int i = 0;
+            while (i < buckets.length && value > buckets[i]) ++i;
+            counts[i].increment();
+            sum.add(value);
+        }
+
+        /** Observe the time since start (as returned by {@link System#nanoTime()}), in seconds. */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        @Override
+        public void write(Writer out, String name, String labels) throws IOException {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                cumulative += counts[i].sum();
+                String le = i < buckets.length ? Double.toString(buckets[i]) : "+Inf";
+                line(out, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+            }
+            line(out, name + "_sum", labels, sum.sum());
+            line(out, name + "_count", labels, cumulative);
+        }
+    }
+
+    private static class Callback implements Sample {
+        private final DoubleSupplier value;
+
+        Callback(DoubleSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(Writer out, String name, String labels) throws IOException {
+            line(out, name, labels, value.getAsDouble());
+        }
+    }
+
+    private static class Family {
+        final String help;
+        final String type;
+        /** Keyed by the formatted labels */
+        final Map<String, Sample> samples = new ConcurrentSkipListMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final Metrics instance = new Metrics();
+
+    /** Sorted by name, so the output is stable. */
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /** Cache for the hot paths, so we don't need to format labels on every call. */
+    private final Map<String, Sample> lookup = new ConcurrentHashMap<>();
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) get(name, help, "counter", labels, Counter::new);
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) get(name, help, "histogram", labels, () -> new Histogram(DURATION_BUCKETS));
+    }
+
+    /** Register a gauge, its value is read when the metrics are written. Replaces any previous gauge with the same name and labels. */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "gauge", labels, new Callback(value));
+    }
+
+    /**
+     * Register a counter that is kept elsewhere, its value is read when the metrics are written.
+     * Replaces any previous counter with the same name and labels.
+     */
+    public void counter(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "counter", labels, new Callback(value));
+    }
+
+    private Sample get(String name, String help, String type, String[] labels, java.util.function.Supplier<Sample> gen) {
+        String key = name + '\0' + String.join("\0", labels);
+        Sample s = lookup.get(key);
+        if (s != null) return s;
+        return lookup.computeIfAbsent(key, __ -> families
+                .computeIfAbsent(name, ___ -> new Family(help, type))
+                .samples.computeIfAbsent(formatLabels(labels), ___ -> gen.get()));
+    }
+
+    private void register(String name, String help, String type, String[] labels, Sample sample) {
+        families.computeIfAbsent(name, __ -> new Family(help, type)).samples.put(formatLabels(labels), sample);
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        for (Map.Entry<String, Family> f : families.entrySet()) {
+            String name = f.getKey();
+            Family family = f.getValue();
+            out.write("# HELP " + name + " " + family.help + "\n");
+            out.write("# TYPE " + name + " " + family.type + "\n");
+            for (Map.Entry<String, Sample> s : family.samples.entrySet()) {
+                s.getValue().write(out, name, s.getKey());
+            }
+        }
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels should be name/value pairs");
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (b.length() > 0) b.append(',');
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            b.append(labels[i]).append("=\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return b.toString();
+    }
+
+    private static void line(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name);
+        if (!labels.isEmpty()) out.write("{" + labels + "}");
+        out.write(' ');
+        out.write(value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value));
+        out.write('\n');
+    }
+}
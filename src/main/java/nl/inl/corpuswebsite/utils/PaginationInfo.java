@@ -20,6 +20,8 @@ public class PaginationInfo {
     private static final Logger logger = Logger.getLogger(PaginationInfo.class.getName());
 
     private static final Pattern CAPTURE_DOCLENGTH_PATTERN = Pattern.compile("<lengthInTokens>\\s*(\\d+)\\s*</lengthInTokens>");
+    /** Captures the name and length of every annotated field (parallel corpora). */
+    private static final Pattern CAPTURE_FIELD_LENGTH_PATTERN = Pattern.compile("<fieldName>([\\w]+)</fieldName>\\s*<tokenCount>\\s*(\\d+)\\s*</tokenCount>");
 
     public final int pageSize;
     public final int documentLength;
@@ -46,11 +48,23 @@ public class PaginationInfo {
             Optional<Integer> hitStart,
             Optional<String> field
     ) {
-
         // Get doc length for the annotated field
-        this.documentLength = documentMetadata
-                .map(metadata -> PaginationInfo.getDocumentLength(metadata, field))
-                .getResult().orElse(Integer.MAX_VALUE);
+        this(pageSize, documentMetadata.map(metadata -> PaginationInfo.getDocumentLength(metadata, field)).getResult(), requestedPageStart, requestedPageEnd, hitStart);
+    }
+
+    /**
+     * Like {@link #PaginationInfo(Optional, Result, Optional, Optional, Optional, Optional)}, when the length of the document is already known.
+     *
+     * @param knownLength length of the (field of the) document in tokens, empty if unknown.
+     */
+    public PaginationInfo(
+            Optional<Integer> pageSize,
+            Optional<Integer> knownLength,
+            Optional<Integer> requestedPageStart,
+            Optional<Integer> requestedPageEnd,
+            Optional<Integer> hitStart
+    ) {
+        this.documentLength = knownLength.orElse(Integer.MAX_VALUE);
 
         this.pageSize = pageSize.orElse(Integer.MAX_VALUE);
         if (pageSize.isEmpty()) {
@@ -91,19 +105,47 @@ public class PaginationInfo {
         this.blacklabPageEnd = end != documentLength ? Optional.of(end) : Optional.empty();
     }
 
+    /** A page of the given size, starting at start. Pagination must be enabled, and start within the document. */
+    private PaginationInfo(int pageSize, int documentLength, int start) {
+        this.pageSize = pageSize;
+        this.documentLength = documentLength;
+        this.clientPageStart = start;
+        this.clientPageEnd = (int) Math.min((long) start + pageSize, documentLength);
+        this.blacklabPageStart = start != 0 ? Optional.of(start) : Optional.empty();
+        this.blacklabPageEnd = clientPageEnd != documentLength ? Optional.of(clientPageEnd) : Optional.empty();
+    }
+
+    /** The page after this one. Empty if this is the last page, or the document length or page size are unknown. */
+    public Optional<PaginationInfo> next() {
+        if (!isPaginated() || clientPageEnd >= documentLength) return Optional.empty();
+        return Optional.of(new PaginationInfo(pageSize, documentLength, clientPageEnd));
+    }
+
+    /** The page before this one. Empty if this is the first page, or the document length or page size are unknown. */
+    public Optional<PaginationInfo> previous() {
+        if (!isPaginated() || clientPageStart <= 0) return Optional.empty();
+        return Optional.of(new PaginationInfo(pageSize, documentLength, Math.max(0, clientPageStart - pageSize)));
+    }
+
+    private boolean isPaginated() {
+        return pageSize != Integer.MAX_VALUE && documentLength != Integer.MAX_VALUE;
+    }
+
     private static int getDocumentLength(String documentMetadata, Optional<String> field) {
-        Pattern p = field
-                .filter(StringUtils::isNotBlank)
-                // Get document length for a specific field (parallel corpora)
-                // (note that field may either be full field name like contents__nl or just a version like nl)
-                .map(f -> Pattern.compile("<fieldName>(?:\\w+__)?" + f + "</fieldName>\\s*<tokenCount>\\s*(\\d+)\\s*</tokenCount>"))
-                // Get document length for main annotated field
-                .orElse(CAPTURE_DOCLENGTH_PATTERN);
-
-        Matcher m = p.matcher(documentMetadata);
-        if (m.find())
-            return Integer.parseInt(m.group(1));
-        else
-            throw new RuntimeException("Cannot decode document size" + field.map(f -> " for field " + f).orElse("") + ". Unsupported BlackLab version?");
+        Optional<String> f = field.filter(StringUtils::isNotBlank);
+        if (f.isPresent()) {
+            // Get document length for a specific field (parallel corpora)
+            // (note that field may either be full field name like contents__nl or just a version like nl)
+            Matcher m = CAPTURE_FIELD_LENGTH_PATTERN.matcher(documentMetadata);
+            while (m.find()) {
+                String name = m.group(1);
+                if (name.equals(f.get()) || name.endsWith("__" + f.get())) return Integer.parseInt(m.group(2));
+            }
+        } else {
+            // Get document length for main annotated field
+            Matcher m = CAPTURE_DOCLENGTH_PATTERN.matcher(documentMetadata);
+            if (m.find()) return Integer.parseInt(m.group(1));
+        }
+        throw new RuntimeException("Cannot decode document size" + field.map(x -> " for field " + x).orElse("") + ". Unsupported BlackLab version?");
     }
 }
\ No newline at end of file
@@ -0,0 +1,88 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <pre>
+ * Cache for results that were retrieved with user credentials, and so may differ between users.
+ *
+ * Every principal (i.e. every distinct credential) gets its own small cache, so users never see each other's results.
+ * The footprint is bounded: at most maxPrincipals principals are kept (least recently used are dropped first),
+ * each with at most entriesPerPrincipal entries, which expire after ttl, so changes in permissions are picked up soon enough.
+ *
+ * Principals are identified by a hash of their credential, see {@link #principalOf(String)}, so the credentials themselves are not kept in memory.
+ * </pre>
+ *
+ * @param <V> value type
+ */
+public class PrincipalCache<V> {
+    private final BoundedCache<String, BoundedCache<String, V>> principals;
+    private final int entriesPerPrincipal;
+    private final long ttlMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxPrincipals max number of principals to keep entries for, 0 to disable the cache.
+     * @param entriesPerPrincipal max number of entries per principal, 0 to disable the cache.
+     * @param ttlMillis how long entries stay valid, in milliseconds.
+     */
+    public PrincipalCache(int maxPrincipals, int entriesPerPrincipal, long ttlMillis) {
+        this.principals = new BoundedCache<>(entriesPerPrincipal > 0 ? maxPrincipals : 0, 0, __ -> 1);
+        this.entriesPerPrincipal = entriesPerPrincipal;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** @return an identifier for the credential, which doesn't reveal the credential itself. */
+    public static String principalOf(String credential) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(credential.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every java implementation is required to support SHA-256
+        }
+    }
+
+    public boolean isEnabled() {
+        return principals.isEnabled();
+    }
+
+    public Optional<V> get(String principal, String key) {
+        Optional<V> v = principals.get(principal).flatMap(entries -> entries.get(key));
+        (v.isPresent() ? hits : misses).increment();
+        return v;
+    }
+
+    public void put(String principal, String key, V value) {
+        if (!isEnabled()) return;
+        BoundedCache<String, V> entries;
+        // BoundedCache locks on itself, so this makes the lookup and insert atomic.
+        synchronized (principals) {
+            entries = principals.get(principal).orElse(null);
+            if (entries == null) {
+                entries = new BoundedCache<>(entriesPerPrincipal, ttlMillis, __ -> 1);
+                principals.put(principal, entries);
+            }
+        }
+        entries.put(key, value);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the number of principals that have entries. */
+    public int getPrincipalCount() {
+        return principals.getStats().size;
+    }
+}
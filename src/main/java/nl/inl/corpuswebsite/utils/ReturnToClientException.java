@@ -1,5 +1,8 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.util.List;
+import java.util.Map;
+
 import javax.servlet.http.HttpServletResponse;
 
 /** 
@@ -10,6 +13,8 @@ import javax.servlet.http.HttpServletResponse;
 public class ReturnToClientException extends RuntimeException {
 	int code;
 	String body;
+	/** Headers to add to the response, e.g. WWW-Authenticate to make the browser ask for credentials. */
+	Map<String, List<String>> headers = Map.of();
 	
 	public ReturnToClientException(Exception e) {
 		super(e);
@@ -21,6 +26,10 @@ public class ReturnToClientException extends RuntimeException {
 		this.code = code;
 		this.body = body;
 	}
+	public ReturnToClientException(int code, String body, Map<String, List<String>> headers) {
+		this(code, body);
+		this.headers = headers;
+	}
 	public ReturnToClientException(int code) {
 		super();
 		this.code = code;
@@ -33,4 +42,8 @@ public class ReturnToClientException extends RuntimeException {
 	public String getBody() {
 		return body;
 	}
+
+	public Map<String, List<String>> getHeaders() {
+		return headers;
+	}
 }
@@ -0,0 +1,263 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Opens the connections made by {@link AuthRequest} to upstream servers (i.e. BlackLab).
+ *
+ * Every upstream host gets a bounded pool: at most {@link Keys#UPSTREAM_MAX_CONNECTIONS} connections can be leased at the same time,
+ * further requests wait for at most {@link Keys#UPSTREAM_POOL_TIMEOUT} milliseconds before failing with a 503.
+ * Sockets are kept alive between requests by the JDK's keep-alive cache. Its size is the http.maxConnections system property,
+ * which must be set on the JVM command line to at least the size of the pool (a warning is logged if it isn't).
+ * A socket can only be reused when its response body was read and closed, which {@link Connection#close()} takes care of.
+ * Connections whose body was never opened are disconnected instead.
+ *
+ * The instance can be replaced through {@link #setInstance(UpstreamClient)}, e.g. to use a different http implementation.
+ * </pre>
+ */
+public class UpstreamClient {
+    private static final Logger logger = Logger.getLogger(UpstreamClient.class.getName());
+
+    /**
+     * An open connection to the upstream server, holding a lease on the pool until closed.
+     * Closing the connection closes the response body (returning the socket to the keep-alive cache if the body was read completely),
+     * and returns the lease to the pool.
+     */
+    public static class Connection implements Closeable {
+        private final HttpURLConnection conn;
+        private Runnable release;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private InputStream body;
+
+        Connection(HttpURLConnection conn, Runnable release) {
+            this.conn = conn;
+            this.release = release;
+        }
+
+        /** Run something when the connection is closed, after the lease has been returned. */
+        void onClose(Runnable r) {
+            Runnable previous = release;
+            release = () -> {
+                try {
+                    previous.run();
+                } finally {
+                    r.run();
+                }
+            };
+        }
+
+        public int getResponseCode() throws IOException {
+            return conn.getResponseCode();
+        }
+
+        public String getHeaderField(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        public Map<String, List<String>> getHeaderFields() {
+            return conn.getHeaderFields();
+        }
+
+        public URL getURL() {
+            return conn.getURL();
+        }
+
+        /** Whether the server returned an error body (i.e. the response code indicates an error). */
+        public boolean hasErrorBody() {
+            return conn.getErrorStream() != null;
+        }
+
+        /** The response body, this is the error stream if the server returned an error, otherwise the regular input stream. */
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                InputStream error = conn.getErrorStream();
+                body = error != null ? error : conn.getInputStream();
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            try {
+                if (body != null) body.close();
+                // Nobody read the response (e.g. a redirect, or an error we don't show), so the socket can't be reused. Don't leave it dangling.
+                else conn.disconnect();
+            } catch (IOException e) {
+                // we're done with this connection anyway, the jdk will discard the socket.
+                conn.disconnect();
+            } finally {
+                release.run();
+            }
+        }
+    }
+
+    /** Thrown when no connection to the host became available in time, so no request was made. */
+    public static class PoolException extends QueryException {
+        PoolException(String message) {
+            super(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message);
+        }
+    }
+
+    private static class HostPool {
+        private final Semaphore permits;
+        private final AtomicInteger leased = new AtomicInteger();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+
+        HostPool(int size) {
+            this.permits = new Semaphore(size, true);
+        }
+
+        /** @return a runnable that returns the lease, may only be called once. */
+        Runnable acquire(String host, long timeoutMillis) throws PoolException {
+            long start = System.nanoTime();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PoolException("Interrupted while waiting for a connection to " + host);
+            }
+            long waited = System.nanoTime() - start;
+            waitNanos.add(waited);
+            if (!acquired) {
+                timeouts.increment();
+                throw new PoolException("Timed out waiting for a free connection to " + host);
+            }
+            leased.incrementAndGet();
+            return () -> {
+                leased.decrementAndGet();
+                permits.release();
+            };
+        }
+    }
+
+    private static volatile UpstreamClient instance = new UpstreamClient(32, 5_000, 120_000, 30_000);
+
+    private final Map<String, HostPool> pools = new ConcurrentHashMap<>();
+    /** Numbers the pools in the metrics, so the metrics don't reveal the upstream urls. */
+    private final AtomicInteger poolCount = new AtomicInteger();
+    private final int maxConnectionsPerHost;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int poolTimeout;
+
+    /**
+     * @param maxConnectionsPerHost max number of simultaneous connections to a single host
+     * @param connectTimeout in milliseconds, 0 for no timeout
+     * @param readTimeout in milliseconds, 0 for no timeout
+     * @param poolTimeout max time to wait for a connection to become available, in milliseconds
+     */
+    public UpstreamClient(int maxConnectionsPerHost, int connectTimeout, int readTimeout, int poolTimeout) {
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.poolTimeout = poolTimeout;
+    }
+
+    public static UpstreamClient getInstance() {
+        return instance;
+    }
+
+    public static void setInstance(UpstreamClient client) {
+        instance = client;
+    }
+
+    /** Create the client from the settings in the config. Should be called during servlet initialization, before any request is made. */
+    /** The size of the JDK's keep-alive cache per host, see the http.maxConnections system property. */
+    private static int getKeepAliveConnections() {
+        try {
+            int n = Integer.parseInt(System.getProperty("http.maxConnections", "5"));
+            return n > 0 ? n : 5; // the JDK ignores anything else
+        } catch (NumberFormatException e) {
+            return 5;
+        }
+    }
+
+    public static void configure(GlobalConfig config) {
+        UpstreamClient client = new UpstreamClient(
+                config.getInt(Keys.UPSTREAM_MAX_CONNECTIONS),
+                config.getInt(Keys.UPSTREAM_CONNECT_TIMEOUT),
+                config.getInt(Keys.UPSTREAM_READ_TIMEOUT),
+                config.getInt(Keys.UPSTREAM_POOL_TIMEOUT));
+
+        // The JDK keeps at most http.maxConnections idle sockets per host, any more are closed after use.
+        // It's read once for the whole JVM, so it can only be set on the command line, not by us.
+        int keepAlive = getKeepAliveConnections();
+        if (keepAlive < client.maxConnectionsPerHost) {
+            logger.warning("Only " + keepAlive + " connections to BlackLab are kept alive, but up to " + client.maxConnectionsPerHost + " are used (" + Keys.UPSTREAM_MAX_CONNECTIONS + "). "
+                    + "Start the JVM with -Dhttp.maxConnections=" + client.maxConnectionsPerHost + " to reuse all of them.");
+        }
+        setInstance(client);
+    }
+
+    /**
+     * Open a connection to the url. Blocks until a connection to the host is available.
+     * The returned connection must always be closed.
+     *
+     * @param url the full url, including query and hash
+     * @param method the http method
+     * @param headers request headers, may be empty
+     * @return the connection, the request has been sent but the response has not been read yet.
+     * @throws PoolException when the pool is exhausted (503).
+     * @throws QueryException when the connection could not be made.
+     */
+    public Connection open(String url, String method, Map<String, String> headers) throws QueryException {
+        URL urlObj;
+        try {
+            urlObj = new URL(url);
+        } catch (IOException e) {
+            throw QueryException.wrap(e, "Invalid url " + url);
+        }
+
+        String host = urlObj.getProtocol() + "://" + urlObj.getAuthority();
+        // Within a task on the UpstreamExecutor, don't wait (or read) past its deadline.
+        Runnable release = pools.computeIfAbsent(host, this::createPool).acquire(host, Math.min(poolTimeout, UpstreamExecutor.limitToDeadline(poolTimeout)));
+        try {
+            HttpURLConnection connection = (HttpURLConnection) urlObj.openConnection();
+            connection.setInstanceFollowRedirects(true);
+            connection.setConnectTimeout(UpstreamExecutor.limitToDeadline(connectTimeout));
+            connection.setReadTimeout(UpstreamExecutor.limitToDeadline(readTimeout));
+            connection.setRequestMethod(method);
+            for (Entry<String, String> header : headers.entrySet()) {
+                connection.addRequestProperty(header.getKey(), header.getValue());
+            }
+            connection.connect();
+            return new Connection(connection, release);
+        } catch (IOException | RuntimeException e) {
+            release.run();
+            throw QueryException.wrap(e, "Error connecting to url " + url);
+        }
+    }
+
+    private HostPool createPool(String host) {
+        HostPool pool = new HostPool(maxConnectionsPerHost);
+        String id = Integer.toString(poolCount.getAndIncrement());
+        Metrics m = Metrics.getInstance();
+        m.gauge("upstream_connections_leased", "Connections to upstream (BlackLab) currently in use.", () -> pool.leased.get(), "pool", id);
+        m.gauge("upstream_connections_pending", "Requests waiting for a connection to upstream (BlackLab).", () -> pool.permits.getQueueLength(), "pool", id);
+        m.counter("upstream_pool_timeouts_total", "Requests that gave up waiting for a connection to upstream (BlackLab).", () -> pool.timeouts.sum(), "pool", id);
+        m.counter("upstream_pool_wait_seconds_total", "Time spent waiting for a connection to upstream (BlackLab).", () -> pool.waitNanos.sum() / 1e9, "pool", id);
+        return pool;
+    }
+}
@@ -0,0 +1,191 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Runs independent parts of a request (e.g. fetching from BlackLab and transforming) in parallel.
+ *
+ * The pool is bounded ({@link Keys#UPSTREAM_THREADS} threads, with a small queue). When it's saturated,
+ * tasks run in the thread that submits them, so under load we degrade to sequential processing instead of failing.
+ * Every task gets a deadline ({@link Keys#UPSTREAM_STAGE_TIMEOUT}), counted from the moment it's submitted.
+ * When it passes, {@link Stage#get()} gives up and cancels the task. A task that's waiting for BlackLab can't be interrupted,
+ * so requests made by a task are limited to its deadline instead (see {@link #limitToDeadline(int)}), and it stops soon after.
+ * Still, a task may outlive the request it was started for, so it must never use the request or response objects:
+ * take what's needed from them (e.g. credentials, see {@link BlackLabApi}) before submitting.
+ * </pre>
+ */
+public class UpstreamExecutor {
+    /**
+     * A task running in the background.
+     * @param <R> result type
+     * @param <E> error type
+     */
+    public static class Stage<R, E extends Exception> {
+        private final String description;
+        private final Future<Result<R, E>> future;
+        private final long deadline;
+        private final Function<String, E> onTimeout;
+
+        private Stage(String description, Future<Result<R, E>> future, long deadline, Function<String, E> onTimeout) {
+            this.description = description;
+            this.future = future;
+            this.deadline = deadline;
+            this.onTimeout = onTimeout;
+        }
+
+        /**
+         * Wait for the task to complete, at most until its deadline. Can be called multiple times.
+         * @return the result of the task, or an error if the deadline passed.
+         * @throws RuntimeException when the task threw one (e.g. a {@link ReturnToClientException})
+         */
+        public Result<R, E> get() {
+            try {
+                return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                return Result.error(onTimeout.apply("Timed out while " + description));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                return Result.error(onTimeout.apply("Interrupted while " + description));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw new IllegalStateException(e.getCause()); // can't happen, suppliers don't throw checked exceptions.
+            }
+        }
+    }
+
+    private static volatile UpstreamExecutor instance = new UpstreamExecutor(16, 30_000);
+
+    /** Deadline (in {@link System#nanoTime()}) of the task running on this thread, null when it's not running one. */
+    private static final ThreadLocal<Long> deadline = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor executor;
+    /** For work nobody waits on, see {@link #submitBackground(Runnable)}. */
+    private final ThreadPoolExecutor background;
+    private final long stageTimeoutNanos;
+
+    /**
+     * @param threads max number of tasks running at the same time
+     * @param stageTimeout max time a task may take (including time spent waiting in the queue), in milliseconds
+     */
+    public UpstreamExecutor(int threads, int stageTimeout) {
+        int n = Math.max(1, threads);
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "upstream-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(n), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        int b = Math.max(1, n / 4);
+        this.background = new ThreadPoolExecutor(b, b, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(b), r -> {
+            Thread t = new Thread(r, "background-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        this.background.allowCoreThreadTimeOut(true);
+        this.stageTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stageTimeout);
+    }
+
+    public static UpstreamExecutor getInstance() {
+        return instance;
+    }
+
+    /** Create the executor from the settings in the config, shutting down the previous one. Should be called during servlet initialization. */
+    public static void configure(GlobalConfig config) {
+        UpstreamExecutor previous = instance;
+        instance = new UpstreamExecutor(config.getInt(Keys.UPSTREAM_THREADS), config.getInt(Keys.UPSTREAM_STAGE_TIMEOUT));
+        previous.shutdown();
+    }
+
+    /**
+     * Start running the task in the background.
+     *
+     * @param description what the task does, used in the error message when the deadline passes, e.g. "retrieving document metadata"
+     * @param task the task
+     * @param onTimeout creates the error to return when the deadline passes
+     * @return the running task
+     */
+    public <R, E extends Exception> Stage<R, E> submit(String description, Supplier<Result<R, E>> task, Function<String, E> onTimeout) {
+        long until = System.nanoTime() + stageTimeoutNanos;
+        return new Stage<>(description, executor.submit(() -> runUntil(until, task)), until, onTimeout);
+    }
+
+    /** Run the task with the deadline set for this thread. Tasks may run in the submitting thread (see above), so restore what was there. */
+    private static <T> T runUntil(long until, Supplier<T> task) {
+        Long previous = deadline.get();
+        deadline.set(previous == null ? until : Math.min(previous, until));
+        try {
+            return task.get();
+        } finally {
+            if (previous == null) deadline.remove();
+            else deadline.set(previous);
+        }
+    }
+
+    /**
+     * Limit a timeout to the time left until the deadline of the task running on this thread, so a request made by a task doesn't outlive it.
+     * @param timeoutMillis the timeout, 0 for none
+     * @return the timeout in milliseconds, unchanged when this thread isn't running a task. Never 0 for a task, as that would mean no timeout.
+     */
+    public static int limitToDeadline(int timeoutMillis) {
+        Long until = deadline.get();
+        if (until == null) return timeoutMillis;
+        long left = Math.max(1, TimeUnit.NANOSECONDS.toMillis(until - System.nanoTime()));
+        return (int) (timeoutMillis == 0 ? Math.min(left, Integer.MAX_VALUE) : Math.min(timeoutMillis, left));
+    }
+
+    /** Whether the task running on this thread was cancelled or is past its deadline. Tasks that do several things in a row should check this in between. */
+    public static boolean isExpired() {
+        Long until = deadline.get();
+        return Thread.currentThread().isInterrupted() || (until != null && System.nanoTime() - until >= 0);
+    }
+
+    /**
+     * Run a task that nobody waits for (e.g. prefetching), on a small separate pool (a quarter of {@link Keys#UPSTREAM_THREADS}).
+     * Unlike {@link #submit(String, Supplier, Function)}, the task is dropped when that pool is busy, so it never delays a request.
+     * The task must not use the request or response, as it may run after the request has finished.
+     *
+     * @return whether the task was accepted
+     */
+    public boolean submitBackground(Runnable task) {
+        try {
+            background.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /** @return number of tasks currently running */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /** @return number of tasks waiting for a thread */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        background.shutdownNow();
+    }
+}
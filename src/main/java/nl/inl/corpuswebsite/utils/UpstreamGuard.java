@@ -0,0 +1,228 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Protects us from a slow or failing BlackLab, so that it can't tie up all of our request threads.
+ *
+ * Bulkheads: every upstream operation (corpus info, document metadata, document contents, stylesheets) may only have a limited
+ * number of requests in flight. When the limit is reached, further requests wait for at most {@link Keys#UPSTREAM_LIMIT_WAIT} milliseconds,
+ * then fail with a 503. So e.g. a flood of slow document requests can't prevent search pages from loading their corpus info.
+ *
+ * Circuit breaker: the outcomes of the last {@link Keys#UPSTREAM_BREAKER_WINDOW} requests are recorded.
+ * Connection errors, 5xx responses and requests slower than {@link Keys#UPSTREAM_BREAKER_SLOW_CALL} milliseconds count as failures.
+ * Requests that never reached BlackLab (no free connection in our pool, or the task making it ran out of time) are not recorded.
+ * When too many of them failed, the breaker opens: for {@link Keys#UPSTREAM_BREAKER_OPEN_DURATION} milliseconds, all requests fail immediately with a 503.
+ * After that, a single probe request is let through (half-open). If it succeeds the breaker closes again, if not it stays open for another period.
+ * </pre>
+ */
+public class UpstreamGuard {
+    private static final Logger logger = Logger.getLogger(UpstreamGuard.class.getName());
+
+    /** Thrown when a request is not made because of a bulkhead or the circuit breaker. */
+    public static class RejectedException extends QueryException {
+        RejectedException(String message) {
+            super(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message);
+        }
+    }
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** Permission to make a request, must be released exactly once, after recording the outcome. */
+    public class Permit {
+        private final Semaphore bulkhead;
+        private final boolean probe;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private volatile boolean recorded = false;
+
+        private Permit(Semaphore bulkhead, boolean probe) {
+            this.bulkhead = bulkhead;
+            this.probe = probe;
+        }
+
+        /**
+         * @param failed whether the request failed (no response or a 5xx response)
+         * @param nanos how long it took to get a response
+         */
+        public void record(boolean failed, long nanos) {
+            recorded = true;
+            UpstreamGuard.this.record(this, failed || nanos > slowCallNanos);
+        }
+
+        /** Return the permit to the bulkhead. A probe that wasn't recorded (the request never reached BlackLab) lets another request probe. */
+        public void release() {
+            if (!released.compareAndSet(false, true)) return;
+            if (bulkhead != null) bulkhead.release();
+            if (probe && !recorded) endProbe();
+        }
+    }
+
+    private static volatile UpstreamGuard instance = new UpstreamGuard(Map.of(), 1000, 0, 20, 10_000, 10_000);
+
+    private final Map<String, Semaphore> bulkheads = new ConcurrentHashMap<>();
+    private final Map<String, Integer> limits;
+    private final long waitMillis;
+
+    private final int failureRate;
+    private final boolean[] window;
+    private final long slowCallNanos;
+    private final long openNanos;
+
+    // Breaker state, guarded by this
+    private State state = State.CLOSED;
+    private int calls = 0;
+    private int next = 0;
+    private int failures = 0;
+    private long openedAt;
+    private boolean probing = false;
+
+    /**
+     * @param limits max number of requests in flight per operation, operations without (or with 0) limit are unlimited
+     * @param waitMillis how long to wait for a free slot when an operation is at its limit
+     * @param failureRate percentage of failed requests in the window that opens the breaker, 0 to disable the breaker
+     * @param window number of recent requests to consider
+     * @param slowCallMillis requests that take longer than this count as failures, 0 to only count errors
+     * @param openMillis how long the breaker stays open before letting a probe request through
+     */
+    public UpstreamGuard(Map<String, Integer> limits, long waitMillis, int failureRate, int window, long slowCallMillis, long openMillis) {
+        this.limits = limits;
+        this.waitMillis = waitMillis;
+        this.failureRate = failureRate;
+        this.window = new boolean[Math.max(1, window)];
+        this.slowCallNanos = slowCallMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowCallMillis) : Long.MAX_VALUE;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    public static UpstreamGuard getInstance() {
+        return instance;
+    }
+
+    /** Create the guard from the settings in the config. Should be called during servlet initialization. */
+    public static void configure(GlobalConfig config) {
+        instance = new UpstreamGuard(
+                Map.of(
+                        BlackLabApi.CORPUS_INFO, config.getInt(Keys.UPSTREAM_LIMIT_CORPUS_INFO),
+                        BlackLabApi.DOCUMENT_METADATA, config.getInt(Keys.UPSTREAM_LIMIT_METADATA),
+                        BlackLabApi.DOCUMENT_CONTENTS, config.getInt(Keys.UPSTREAM_LIMIT_CONTENTS),
+                        BlackLabApi.STYLESHEET, config.getInt(Keys.UPSTREAM_LIMIT_STYLESHEET)),
+                config.getInt(Keys.UPSTREAM_LIMIT_WAIT),
+                config.getInt(Keys.UPSTREAM_BREAKER_FAILURE_RATE),
+                config.getInt(Keys.UPSTREAM_BREAKER_WINDOW),
+                config.getInt(Keys.UPSTREAM_BREAKER_SLOW_CALL),
+                config.getInt(Keys.UPSTREAM_BREAKER_OPEN_DURATION));
+    }
+
+    /**
+     * Get permission to make a request for the operation.
+     * Blocks for a while if the operation is at its limit.
+     *
+     * @param operation the operation, e.g. {@link BlackLabApi#DOCUMENT_CONTENTS}
+     * @return the permit, which must be released when the request is done.
+     * @throws RejectedException when the breaker is open, or the operation stays at its limit.
+     */
+    public Permit acquire(String operation) throws RejectedException {
+        boolean probe = allowRequest();
+
+        Semaphore bulkhead = getBulkhead(operation);
+        if (bulkhead != null) {
+            boolean acquired;
+            try {
+                acquired = bulkhead.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired) {
+                if (probe) synchronized (this) { probing = false; } // let someone else probe
+                throw new RejectedException("Too many simultaneous requests to BlackLab for " + operation + ", try again later");
+            }
+        }
+        return new Permit(bulkhead, probe);
+    }
+
+    /** @return whether this request is the probe for a half-open breaker. */
+    private synchronized boolean allowRequest() throws RejectedException {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+            logger.info("Circuit breaker for BlackLab half-open, trying a request");
+        }
+        if (state == State.CLOSED) return false;
+        if (state == State.HALF_OPEN && !probing) {
+            probing = true;
+            return true;
+        }
+        throw new RejectedException("BlackLab is not responding properly, try again later");
+    }
+
+    private synchronized void record(Permit permit, boolean failed) {
+        if (permit.probe) {
+            probing = false;
+            if (failed) {
+                open();
+            } else {
+                state = State.CLOSED;
+                calls = next = failures = 0;
+                logger.info("Circuit breaker for BlackLab closed");
+            }
+            return;
+        }
+        if (state != State.CLOSED || failureRate <= 0) return;
+
+        if (calls == window.length && window[next]) --failures;
+        window[next] = failed;
+        if (failed) ++failures;
+        next = (next + 1) % window.length;
+        calls = Math.min(calls + 1, window.length);
+
+        if (calls == window.length && failures * 100 >= failureRate * window.length) open();
+    }
+
+    private synchronized void endProbe() {
+        probing = false;
+    }
+
+    private void open() {
+        if (state != State.OPEN) logger.warning("Circuit breaker for BlackLab opened, too many requests failed or were too slow");
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+    }
+
+    private Semaphore getBulkhead(String operation) {
+        int limit = limits.getOrDefault(operation, 0);
+        if (limit <= 0) return null;
+        return bulkheads.computeIfAbsent(operation, __ -> new Semaphore(limit));
+    }
+
+    /**
+     * Tell the client when to try again, if the status is 503 (which is usually because of us): when the breaker will let requests through again,
+     * or in a second when it's just an operation at its limit. Call this from the request's own thread, just before sending the error.
+     */
+    public void setRetryAfter(HttpServletResponse response, int status) {
+        if (status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) response.setHeader("Retry-After", Long.toString(getRetryAfterSeconds()));
+    }
+
+    private synchronized long getRetryAfterSeconds() {
+        long remaining = state == State.OPEN ? openNanos - (System.nanoTime() - openedAt) : state == State.HALF_OPEN ? openNanos : 0;
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining) + 1);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /** @return number of requests currently in flight for the operation, 0 if it's unlimited. */
+    public int getActive(String operation) {
+        Semaphore s = getBulkhead(operation);
+        return s == null ? 0 : limits.get(operation) - s.availablePermits();
+    }
+}
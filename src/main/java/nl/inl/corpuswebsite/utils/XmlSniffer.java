@@ -0,0 +1,165 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.Reader;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * <pre>
+ * Decides whether document contents are xml (and should be transformed), or plain text (with only the hl tags BlackLab inserts).
+ *
+ * Only the first {@link #SNIFF_LENGTH} characters are inspected, so the cost doesn't depend on the size of the document.
+ * These are read with a streaming xml reader, wrapped in an element of our own so fragments (e.g. a page of a document) and plain text can be read too.
+ * The first element that is not hl decides it. If there is none before the end of the prefix, the contents are plain text.
+ * Plain text usually doesn't contain anything that could start an element, in which case we don't parse at all.
+ * When the prefix is not well-formed (e.g. plain text containing &amp; or &lt;) we fall back to looking for tags with a pattern, still only in the prefix.
+ * </pre>
+ */
+class XmlSniffer {
+    /** How much of a document to inspect. */
+    static final int SNIFF_LENGTH = 64 * 1024;
+
+    /** Matches xml open/void tags &lt;namespace:tagname attribute="value"/&gt; excluding hl tags, as those are inserted by blacklab and can result in false positives */
+    private static final Pattern XML_TAG_PATTERN = Pattern.compile("<([\\w]+:)?((?!(hl|blacklabResponse|[xX][mM][lL])\\b)[\\w.]+)(\\s+[\\w\\.:]+=\"[:/()='+\\-\\w\\s,]*\")*/?>");
+
+    /** Element names (without namespace prefix) that don't make a document xml, same as excluded by {@link #XML_TAG_PATTERN}. */
+    private static final Pattern IGNORED_ELEMENT = Pattern.compile("(hl|blacklabResponse|[xX][mM][lL])\\b");
+
+    private static final String ROOT_START = "<sniff>";
+
+    /** Creating readers from a configured factory is thread-safe. */
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // Documents often use prefixes they don't declare (BlackLab returns fragments), and we only need the names anyway.
+        FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    }
+
+    private XmlSniffer() {}
+
+    static boolean looksLikeXml(CharSequence contents) {
+        CharSequence prefix = contents.length() > SNIFF_LENGTH ? contents.subSequence(0, SNIFF_LENGTH) : contents;
+        int start = skipProlog(prefix);
+        if (start >= 0 && !hasElementCandidate(prefix, start)) return false;
+        if (start < 0) return XML_TAG_PATTERN.matcher(prefix).find();
+
+        WrappingReader wrapped = new WrappingReader(prefix, start);
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(wrapped);
+            reader.next(); // our own root
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && !isIgnored(reader.getLocalName())) return true;
+            }
+            return false;
+        } catch (XMLStreamException e) {
+            // Reaching the end of the prefix (which we never close) is expected, and means we saw no elements that count.
+            if (e.getLocation() != null && e.getLocation().getCharacterOffset() >= wrapped.length) return false;
+            return XML_TAG_PATTERN.matcher(prefix).find();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // nothing to release for a string
+                }
+            }
+        }
+    }
+
+    /** Reads our own root element followed by the contents, without copying them. */
+    private static class WrappingReader extends Reader {
+        private final CharSequence contents;
+        private int rootPos = 0;
+        private int pos;
+        final int length;
+
+        WrappingReader(CharSequence contents, int start) {
+            this.contents = contents;
+            this.pos = start;
+            this.length = ROOT_START.length() + contents.length() - start;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            int n = 0;
+            for (; n < len && rootPos < ROOT_START.length(); ++n) cbuf[off + n] = ROOT_START.charAt(rootPos++);
+            for (; n < len && pos < contents.length(); ++n) cbuf[off + n] = contents.charAt(pos++);
+            return n == 0 && len > 0 ? -1 : n;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    /**
+     * Every element starts with &lt; followed by a name, so if there is no such thing (apart from hl tags) there's no need to parse.
+     * This is the common case for plain text, and much cheaper than parsing it.
+     */
+    private static boolean hasElementCandidate(CharSequence s, int from) {
+        for (int i = from; i < s.length() - 1; ++i) {
+            if (s.charAt(i) != '<') continue;
+            char c = s.charAt(i + 1);
+            if (!Character.isLetter(c) && c != '_' && c != ':') continue;
+            if (startsWith(s, i + 1, "hl>")) continue;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isIgnored(String name) {
+        int colon = name.indexOf(':');
+        return IGNORED_ELEMENT.matcher(name).region(colon + 1, name.length()).lookingAt();
+    }
+
+    /**
+     * The xml declaration and doctype can't appear inside our own root element, so skip them.
+     * @return where the contents start, or -1 if the doctype has an internal subset, which we don't handle.
+     */
+    private static int skipProlog(CharSequence s) {
+        int i = skipWhitespace(s, 0);
+        if (startsWith(s, i, "\uFEFF")) i = skipWhitespace(s, i + 1);
+        if (startsWith(s, i, "<?xml")) {
+            int end = indexOf(s, "?>", i);
+            if (end < 0) return s.length();
+            i = skipWhitespace(s, end + 2);
+        }
+        if (startsWith(s, i, "<!DOCTYPE")) {
+            int end = indexOf(s, ">", i);
+            int subset = indexOf(s, "[", i);
+            if (subset >= 0 && (end < 0 || subset < end)) return -1;
+            if (end < 0) return s.length();
+            i = end + 1;
+        }
+        return i;
+    }
+
+    private static int skipWhitespace(CharSequence s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) ++i;
+        return i;
+    }
+
+    private static boolean startsWith(CharSequence s, int i, String prefix) {
+        if (i + prefix.length() > s.length()) return false;
+        for (int j = 0; j < prefix.length(); ++j) {
+            if (s.charAt(i + j) != prefix.charAt(j)) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence s, String needle, int from) {
+        outer:
+        for (int i = from; i + needle.length() <= s.length(); ++i) {
+            for (int j = 0; j < needle.length(); ++j) {
+                if (s.charAt(i + j) != needle.charAt(j)) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -1,182 +1,312 @@
-package nl.inl.corpuswebsite.utils;
-
-import java.io.File;
-import java.io.InputStream;
-import java.io.Reader;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.io.Writer;
-import java.net.URI;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.function.Function;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import javax.xml.transform.ErrorListener;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Templates;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
-
-import org.apache.commons.lang3.tuple.Pair;
-
-import net.sf.saxon.trans.XPathException;
-
-public class XslTransformer {
-    private static final Logger logger = Logger.getLogger(XslTransformer.class.getName());
-
-    private static class CapturingErrorListener implements ErrorListener {
-        private final List<Pair<String, Exception>> exceptions = new ArrayList<>();
-
-        @Override
-        public void error(TransformerException e) throws TransformerException {
-            this.exceptions.add(Pair.of(this.getDescriptiveMessage(e), e));
-        }
-
-        @Override
-        public void fatalError(TransformerException e) throws TransformerException {
-            this.exceptions.add(Pair.of(this.getDescriptiveMessage(e), e));
-        }
-
-        @Override
-        public void warning(TransformerException e) throws TransformerException {
-            // just log these, no need to store them as errors
-            logger.log(Level.WARNING, getDescriptiveMessage(e), e);
-        }
-
-        public List<Pair<String, Exception>> getErrorList() {
-            return this.exceptions;
-        }
-
-        private String getDescriptiveMessage(TransformerException e) {
-            if (e instanceof TransformerConfigurationException) {
-                final TransformerConfigurationException ee  = (TransformerConfigurationException) e;
-                return ee.getMessageAndLocation();
-            } else if (e instanceof XPathException) {
-                XPathException ee = (XPathException) e;
-                return ee.getErrorCodeLocalPart() + " in " + ee.getHostLanguage() + ": " + ee.getMessageAndLocation();
-            } else {
-                return e.getMessageAndLocation();
-            }
-        }
-    }
-
-    /**
-     * Thread-safe as long as you don't change Configuration, which we don't. See
-     * https://saxonica.plan.io/boards/2/topics/5645.
-     */
-    private static final TransformerFactory FACTORY
-            = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", XslTransformer.class.getClassLoader());
-
-    private final Map<String, String> params = new HashMap<>();
-
-    private final Transformer transformer;
-
-    private static final Map<String, Templates> TEMPLATES = new HashMap<>();
-
-    private static boolean useCache = true;
-
-    public static void setUseCache(boolean use) {
-        useCache = use;
-    }
-
-    static {
-        FACTORY.setErrorListener(new CapturingErrorListener());
-    }
-
-    /**
-     * Constructs a new transformer (and templates if not cached and cache is enabled) and caches the templates if caching is enabled.
-     *
-     * @param id
-     * @param source
-     * @return
-     * @throws TransformerException
-     */
-    private static Transformer get(String id, StreamSource source) throws Exception {
-        synchronized (TEMPLATES) {
-            try {
-                FACTORY.setErrorListener(new CapturingErrorListener()); // renew to remove old exceptions
-                Function<String, Templates> gen = __ -> { try { return FACTORY.newTemplates(source); } catch (TransformerException e) { throw new RuntimeException(e); } };
-                Templates t = (useCache ? TEMPLATES.computeIfAbsent(id, gen) : gen.apply(id));
-                return t.newTransformer();
-            } catch (Exception e) {
-                CapturingErrorListener l = (CapturingErrorListener) FACTORY.getErrorListener();
-                if (!l.getErrorList().isEmpty()) {
-                    throw l.getErrorList().get(0).getRight();
-                }
-                throw e;
-            }
-        }
-    }
-
-    public XslTransformer(File stylesheet) throws Exception {
-        transformer = get(stylesheet.getAbsolutePath(), new StreamSource(stylesheet));
-    }
-
-    public XslTransformer(String id, URI uri) throws Exception {
-        transformer = get(id, new StreamSource(uri.toString()));
-    }
-
-    public XslTransformer(String id, Reader sheet) throws Exception {
-        transformer = get(id, new StreamSource(sheet));
-    }
-
-    public XslTransformer(String id, String xsl) throws Exception {
-        this(id, new StringReader(xsl));
-    }
-
-    public String transform(String source)
-            throws TransformerException {
-        StreamSource ssSource = new StreamSource(new StringReader(source));
-        StringWriter result = new StringWriter();
-        StreamResult streamResult = new StreamResult(result);
-
-        synchronized (transformer) {
-            for (Entry<String, String> e : params.entrySet()) {
-                transformer.setParameter(e.getKey(), e.getValue());
-            }
-
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            //transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.transform(ssSource, streamResult);
-            transformer.reset();
-        }
-
-        return result.toString();
-    }
-
-    public <W extends Writer> W streamTransform(Reader source, W result)
-            throws TransformerException {
-        StreamSource ssSource = new StreamSource(source);
-        StreamResult streamResult = new StreamResult(result);
-
-        synchronized (transformer) {
-            for (Entry<String, String> e : params.entrySet()) {
-                transformer.setParameter(e.getKey(), e.getValue());
-            }
-
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.transform(ssSource, streamResult);
-            transformer.reset();
-        }
-        return result;
-
-    }
-
-    public void addParameter(String key, String value) {
-        params.put(key, value);
-    }
-
-    public void clearParameters() {
-        params.clear();
-    }
-}
+package nl.inl.corpuswebsite.utils;
+
+import java.io.File;
+import java.io.FilterReader;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * A compiled stylesheet, with the parameters to pass to it.
+ * Instances are immutable and can be shared between threads: compiled stylesheets are cached and reused,
+ * and every transformation gets its own (cheap) transformer, so no locking is needed to run them.
+ * Use {@link #withParameters(Map)} to get a copy with request-specific parameters.
+ */
+public class XslTransformer {
+    private static final Logger logger = Logger.getLogger(XslTransformer.class.getName());
+
+    private static class CapturingErrorListener implements ErrorListener {
+        private final List<Pair<String, Exception>> exceptions = new ArrayList<>();
+
+        @Override
+        public void error(TransformerException e) throws TransformerException {
+            this.exceptions.add(Pair.of(this.getDescriptiveMessage(e), e));
+        }
+
+        @Override
+        public void fatalError(TransformerException e) throws TransformerException {
+            this.exceptions.add(Pair.of(this.getDescriptiveMessage(e), e));
+        }
+
+        @Override
+        public void warning(TransformerException e) throws TransformerException {
+            // just log these, no need to store them as errors
+            logger.log(Level.WARNING, getDescriptiveMessage(e), e);
+        }
+
+        public List<Pair<String, Exception>> getErrorList() {
+            return this.exceptions;
+        }
+
+        private String getDescriptiveMessage(TransformerException e) {
+            if (e instanceof TransformerConfigurationException) {
+                final TransformerConfigurationException ee  = (TransformerConfigurationException) e;
+                return ee.getMessageAndLocation();
+            } else if (e instanceof XPathException) {
+                XPathException ee = (XPathException) e;
+                return ee.getErrorCodeLocalPart() + " in " + ee.getHostLanguage() + ": " + ee.getMessageAndLocation();
+            } else {
+                return e.getMessageAndLocation();
+            }
+        }
+    }
+
+    /** Counts the characters read, for the metrics. */
+    private static class CountingReader extends FilterReader {
+        long count = 0;
+
+        CountingReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) ++count;
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int n = super.read(cbuf, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+
+    /** Counts the characters written, for the metrics. Does not close the underlying writer, so the caller can keep using it. */
+    private static class CountingWriter extends FilterWriter {
+        long count = 0;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            super.write(c);
+            ++count;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            super.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            super.write(str, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /** Wraps compilation errors so they can escape from {@link Map#computeIfAbsent}. */
+    private static class CompilationException extends RuntimeException {
+        CompilationException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Thread-safe as long as you don't change Configuration, which we don't. See
+     * https://saxonica.plan.io/boards/2/topics/5645.
+     */
+    static final Processor PROCESSOR = new Processor(false);
+
+    /** A compiled stylesheet, numbered so we can tell different compilations apart. */
+    private static class Compiled {
+        private static final AtomicLong counter = new AtomicLong();
+
+        final XsltExecutable executable;
+        final long id = counter.incrementAndGet();
+        /** The stylesheet this was compiled from, if it was passed as a string. */
+        private final String xsl;
+
+        Compiled(XsltExecutable executable, String xsl) {
+            this.executable = executable;
+            this.xsl = xsl;
+        }
+
+        /** @param xsl the stylesheet, or null if unknown (then any compilation under the same id will do) */
+        boolean isCompiledFrom(String xsl) {
+            return xsl == null || xsl.equals(this.xsl);
+        }
+    }
+
+    /** Compiled stylesheets are immutable and thread-safe, so they can be shared by all requests. */
+    private static final Map<String, Compiled> TEMPLATES = new ConcurrentHashMap<>();
+
+    private static boolean useCache = true;
+
+    private final Compiled compiled;
+
+    private final Map<String, String> params;
+
+    public static void setUseCache(boolean use) {
+        useCache = use;
+    }
+
+    /**
+     * Get the compiled stylesheet from the cache, compiling it if not cached (or if the cache is disabled).
+     * Only threads requesting the same (uncached) stylesheet wait for each other, cached stylesheets are returned without locking.
+     * When the stylesheet is passed as a string (e.g. retrieved from BlackLab) and it changed, it's compiled again, replacing the old one.
+     *
+     * @param id key for the cache
+     * @param source the stylesheet
+     * @param xsl the contents of source if known, otherwise null
+     * @return the compiled stylesheet
+     * @throws Exception the first error in the stylesheet, if it could not be compiled
+     */
+    private static Compiled get(String id, Source source, String xsl) throws Exception {
+        if (!useCache) return compile(source, xsl);
+        Compiled cached = TEMPLATES.get(id);
+        if (cached != null && cached.isCompiledFrom(xsl)) return cached;
+
+        try {
+            return TEMPLATES.compute(id, (__, current) -> {
+                if (current != null && current.isCompiledFrom(xsl)) return current;
+                try {
+                    return compile(source, xsl);
+                } catch (Exception e) {
+                    throw new CompilationException(e);
+                }
+            });
+        } catch (CompilationException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static Compiled compile(Source source, String xsl) throws Exception {
+        // Every compilation gets its own listener, so concurrent compilations don't mix up their errors.
+        CapturingErrorListener l = new CapturingErrorListener();
+        XsltCompiler compiler = PROCESSOR.newXsltCompiler();
+        compiler.setErrorListener(l);
+        try {
+            return new Compiled(compiler.compile(source), xsl);
+        } catch (SaxonApiException e) {
+            if (!l.getErrorList().isEmpty()) {
+                throw l.getErrorList().get(0).getRight();
+            }
+            throw new TransformerConfigurationException(e.getMessage(), e);
+        }
+    }
+
+    public XslTransformer(File stylesheet) throws Exception {
+        this(get(stylesheet.getAbsolutePath(), new StreamSource(stylesheet), null), Map.of());
+    }
+
+    public XslTransformer(String id, URI uri) throws Exception {
+        this(get(id, new StreamSource(uri.toString()), null), Map.of());
+    }
+
+    public XslTransformer(String id, Reader sheet) throws Exception {
+        this(get(id, new StreamSource(sheet), null), Map.of());
+    }
+
+    public XslTransformer(String id, String xsl) throws Exception {
+        this(get(id, new StreamSource(new StringReader(xsl)), xsl), Map.of());
+    }
+
+    private XslTransformer(Compiled compiled, Map<String, String> params) {
+        this.compiled = compiled;
+        this.params = params;
+    }
+
+    /**
+     * Identifies the stylesheet and its parameters, changes when the stylesheet is recompiled or the parameters change.
+     * Useful as part of a key when caching transformation results.
+     */
+    public String getVersion() {
+        return compiled.id + "-" + Integer.toHexString(params.hashCode());
+    }
+
+    /**
+     * @param parameters stylesheet parameters, these are added to (or override) the existing parameters
+     * @return a new transformer for the same stylesheet, this instance is not modified
+     */
+    public XslTransformer withParameters(Map<String, String> parameters) {
+        Map<String, String> merged = new HashMap<>(params);
+        merged.putAll(parameters);
+        return new XslTransformer(compiled, Map.copyOf(merged));
+    }
+
+    public String transform(String source)
+            throws TransformerException {
+        return streamTransform(new StringReader(source), new StringWriter()).toString();
+    }
+
+    /**
+     * Transform while reading the source, writing the result as it's produced.
+     * The output is not indented unless the stylesheet asks for it (xsl:output indent="yes"), the same as {@link #transform(String)}.
+     */
+    public <W extends Writer> W streamTransform(Reader source, W result)
+            throws TransformerException {
+        long start = System.nanoTime();
+        CountingReader in = new CountingReader(source);
+        CountingWriter out = new CountingWriter(result);
+        String outcome = "error";
+        try {
+            // load() is cheap and the result is not thread-safe, so get a new one every time.
+            XsltTransformer transformer = compiled.executable.load();
+            for (Entry<String, String> e : params.entrySet()) {
+                transformer.setParameter(new QName(e.getKey()), new XdmAtomicValue(e.getValue()));
+            }
+
+            Serializer serializer = PROCESSOR.newSerializer(out);
+            serializer.setOutputProperty(Serializer.Property.ENCODING, "UTF-8");
+            transformer.setSource(new StreamSource(in));
+            transformer.setDestination(serializer);
+            transformer.transform();
+            out.flush();
+            outcome = "success";
+            return result;
+        } catch (SaxonApiException e) {
+            if (e.getCause() instanceof TransformerException) throw (TransformerException) e.getCause();
+            throw new TransformerException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new TransformerException(e.getMessage(), e);
+        } finally {
+            Metrics m = Metrics.getInstance();
+            m.histogram("xslt_transform_duration_seconds", "Time spent transforming documents and metadata.", "outcome", outcome).observeSince(start);
+            m.counter("xslt_input_chars_total", "Characters of xml read by xslt transformations.").add(in.count);
+            m.counter("xslt_output_chars_total", "Characters written by xslt transformations.").add(out.count);
+        }
+    }
+}
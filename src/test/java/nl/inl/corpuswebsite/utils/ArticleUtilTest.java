@@ -0,0 +1,71 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ArticleUtilTest {
+    private final UpstreamExecutor executor = new UpstreamExecutor(2, 300);
+
+    @AfterEach
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private Map<String, Result<String, QueryException>> getAll(List<String> ids, int workers, long millisPerId) {
+        return ArticleUtil.getAll(ids, workers, id -> {
+            try {
+                Thread.sleep(millisPerId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Result.success("<p>" + id + "</p>");
+        }, worker -> executor.submit("retrieving document metadata", worker, message -> new QueryException(HttpServletResponse.SC_GATEWAY_TIMEOUT, message)));
+    }
+
+    private static List<String> ids(int n) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < n; ++i) ids.add("doc" + i);
+        return ids;
+    }
+
+    @Test
+    public void allDocumentsInOrder() {
+        List<String> ids = ids(10);
+        Map<String, Result<String, QueryException>> results = getAll(ids, 2, 0);
+
+        assertEquals(ids, new ArrayList<>(results.keySet()));
+        for (String id : ids) assertEquals("<p>" + id + "</p>", results.get(id).getResult().orElseThrow());
+    }
+
+    @Test
+    public void deadlineInTheMiddleOfABatch() {
+        List<String> ids = ids(20);
+        // Two workers, 300ms, 50ms per document: they get about halfway.
+        Map<String, Result<String, QueryException>> results = getAll(ids, 2, 50);
+
+        assertEquals(ids, new ArrayList<>(results.keySet()));
+        int retrieved = 0;
+        int timedOut = 0;
+        for (Result<String, QueryException> r : results.values()) {
+            // Every document must end up as either a result or an error, or the client never hears about it.
+            assertTrue(r.hasResult() != r.hasError());
+            if (r.hasResult()) {
+                ++retrieved;
+            } else {
+                assertEquals(HttpServletResponse.SC_GATEWAY_TIMEOUT, r.getError().get().getHttpStatusCode());
+                ++timedOut;
+            }
+        }
+        assertTrue(retrieved > 0);
+        assertTrue(timedOut > 0);
+    }
+}